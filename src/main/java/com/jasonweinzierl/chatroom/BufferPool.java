@@ -0,0 +1,171 @@
+package com.jasonweinzierl.chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * chatroom
+ *
+ * Shared pool of I/O buffers in a few size classes.
+ * Connections borrow a buffer only while bytes are in flight and give it back afterwards,
+ * so an idle connection holds no buffer at all.
+ * Each thread keeps one buffer per class for itself before going to the shared queues,
+ * and hands them over with {@link #trim()} before it blocks waiting for input.
+ *
+ * Buffers are heap buffers: sockets here are stream based, and a direct buffer
+ * would need an extra copy into a {@code byte[]} on every read and write.
+ *
+ * Run with {@code -Dchatroom.pool.leakDetection=true} to record where each buffer
+ * was borrowed and report any that were never returned.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class BufferPool
+{
+    static final int SMALL = 512;
+    static final int MEDIUM = 4096;
+    static final int LARGE = 65536;
+
+    private static final int []CLASSES = {SMALL, MEDIUM, LARGE};
+
+    // shared buffers kept per class, beyond which returns are dropped for the GC
+    private static final int []MAX_POOLED = {1024, 256, 16};
+
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("chatroom.pool.leakDetection");
+
+    @SuppressWarnings("unchecked")
+    private static final Queue<ByteBuffer> []shared = (Queue<ByteBuffer>[]) new Queue<?>[CLASSES.length];
+    private static final AtomicInteger []sharedSizes = new AtomicInteger[CLASSES.length];
+    static {
+        for (int i = 0; i < CLASSES.length; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+            sharedSizes[i] = new AtomicInteger(0);
+        }
+    }
+
+    private static final ThreadLocal<ByteBuffer[]> cached = ThreadLocal.withInitial(() -> new ByteBuffer[CLASSES.length]);
+
+    // borrowed buffers and where they were borrowed, only with leak detection
+    private static final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private static final LongAdder borrows = new LongAdder();
+    private static final LongAdder threadHits = new LongAdder();
+    private static final LongAdder sharedHits = new LongAdder();
+    private static final LongAdder allocations = new LongAdder();
+    private static final LongAdder allocatedBytes = new LongAdder();
+    private static final LongAdder returns = new LongAdder();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Borrows a cleared buffer with at least the requested capacity
+     *
+     * @param capacity minimum capacity, at most {@link #LARGE}
+     * @return buffer to give back with {@link #release(ByteBuffer)}
+     */
+    static ByteBuffer borrow(int capacity) {
+        int sizeClass = classOf(capacity);
+        if (sizeClass < 0) throw new IllegalArgumentException("Buffer too large: " + capacity);
+        borrows.increment();
+
+        ByteBuffer []local = cached.get();
+        ByteBuffer buffer = local[sizeClass];
+        if (buffer != null) {
+            local[sizeClass] = null;
+            threadHits.increment();
+        } else if ((buffer = shared[sizeClass].poll()) != null) {
+            sharedSizes[sizeClass].decrementAndGet();
+            sharedHits.increment();
+        } else {
+            buffer = ByteBuffer.allocate(CLASSES[sizeClass]);
+            allocations.increment();
+            allocatedBytes.add(CLASSES[sizeClass]);
+        }
+
+        if (LEAK_DETECTION) outstanding.put(buffer, new Throwable("Buffer borrowed here"));
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back.  The caller must not touch it afterwards.
+     *
+     * @param buffer buffer from {@link #borrow(int)}
+     */
+    static void release(ByteBuffer buffer) {
+        if (LEAK_DETECTION && outstanding.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer released twice or not from this pool");
+        }
+        returns.increment();
+
+        int sizeClass = classOf(buffer.capacity());
+        if (sizeClass < 0 || CLASSES[sizeClass] != buffer.capacity()) return;
+
+        ByteBuffer []local = cached.get();
+        if (local[sizeClass] == null) {
+            local[sizeClass] = buffer;
+        } else {
+            share(sizeClass, buffer);
+        }
+    }
+
+    private static void share(int sizeClass, ByteBuffer buffer) {
+        if (sharedSizes[sizeClass].incrementAndGet() <= MAX_POOLED[sizeClass]) {
+            shared[sizeClass].add(buffer);
+        } else {
+            sharedSizes[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Moves this thread's cached buffers to the shared queues,
+     * so a thread about to sit idle doesn't pin them.
+     */
+    static void trim() {
+        ByteBuffer []local = cached.get();
+        for (int i = 0; i < local.length; i++) {
+            if (local[i] == null) continue;
+            share(i, local[i]);
+            local[i] = null;
+        }
+    }
+
+    private static int classOf(int capacity) {
+        for (int i = 0; i < CLASSES.length; i++) {
+            if (capacity <= CLASSES[i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return number of buffers borrowed and not yet released
+     */
+    static long outstanding() {
+        return borrows.sum() - returns.sum();
+    }
+
+    /**
+     * Lists where unreturned buffers were borrowed.  Empty unless leak detection is on.
+     *
+     * @return stack traces of borrowers
+     */
+    static List<Throwable> leaks() {
+        synchronized (outstanding) {
+            return new ArrayList<>(outstanding.values());
+        }
+    }
+
+    /**
+     * @return pool usage counters
+     */
+    static String stats() {
+        return "borrowed " + borrows.sum()
+                + " (thread " + threadHits.sum() + ", shared " + sharedHits.sum() + ", new " + allocations.sum() + "), "
+                + "outstanding " + outstanding() + ", allocated " + allocatedBytes.sum() + " B";
+    }
+}
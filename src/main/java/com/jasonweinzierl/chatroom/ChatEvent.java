@@ -0,0 +1,110 @@
+package com.jasonweinzierl.chatroom;
+
+/**
+ * chatroom
+ *
+ * Something that happened on a {@link Server}, as seen by subscribers
+ * registered with {@link Server#subscribe(ChatEventListener)}.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+public final class ChatEvent
+{
+    public enum Type {
+        MESSAGE_DELIVERED,
+        LOGIN,
+        LOGOUT,
+        DISCONNECT
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final int clientId;
+    private final String username;
+    private final String recipient;
+    private final String message;
+    private final int recipients;
+
+    // position in the event bus, set once before publishing
+    long sequence;
+
+    ChatEvent(Type type, int clientId, String username, String recipient, String message, int recipients) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.clientId = clientId;
+        this.username = username;
+        this.recipient = recipient;
+        this.message = message;
+        this.recipients = recipients;
+    }
+
+    static ChatEvent login(int clientId, String username) {
+        return new ChatEvent(Type.LOGIN, clientId, username, null, null, 0);
+    }
+
+    static ChatEvent logout(int clientId, String username) {
+        return new ChatEvent(Type.LOGOUT, clientId, username, null, null, 0);
+    }
+
+    static ChatEvent disconnect(int clientId, String username) {
+        return new ChatEvent(Type.DISCONNECT, clientId, username, null, null, 0);
+    }
+
+    static ChatEvent delivered(int clientId, String username, String recipient, String message, int recipients) {
+        return new ChatEvent(Type.MESSAGE_DELIVERED, clientId, username, recipient, message, recipients);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return milliseconds since the epoch when the event happened
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return id of the client that caused the event
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return user that caused the event, or null if the client wasn't logged in
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return user a direct message went to, or null for a broadcast
+     */
+    public String getRecipient() {
+        return recipient;
+    }
+
+    /**
+     * @return delivered message text, or null for other events
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return number of sessions a message was delivered to
+     */
+    public int getRecipients() {
+        return recipients;
+    }
+
+    @Override
+    public String toString() {
+        return type + " #" + sequence + " client " + clientId + ' ' + username
+                + (recipient != null ? " to " + recipient : "")
+                + (message != null ? ": " + message : "");
+    }
+}
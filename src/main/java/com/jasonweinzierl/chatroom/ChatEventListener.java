@@ -0,0 +1,21 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.List;
+
+/**
+ * chatroom
+ *
+ * Receives batches of {@link ChatEvent}s on the subscription's own thread,
+ * so slow listeners never hold up message delivery.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+@FunctionalInterface
+public interface ChatEventListener
+{
+    /**
+     * @param events one or more events in the order they were published
+     */
+    public void onEvents(List<ChatEvent> events);
+}
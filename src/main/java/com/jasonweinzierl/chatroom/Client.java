@@ -5,6 +5,12 @@ import java.beans.PropertyChangeSupport;
 import java.io.*;
 import java.net.ConnectException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * chatroom
@@ -14,12 +20,37 @@ import java.net.Socket;
  */
 public class Client implements AutoCloseable
 {
-    private Socket clientSocket;
-    private PrintWriter socketOut;
-    private BufferedReader in;
+    private Connection connection;
 
     private PrintWriter localOut;
 
+    // connect with TLS if -Dchatroom.tls=true
+    private boolean tls = Tls.clientEnabled();
+
+    // ask server to compress, unless -Dchatroom.compress=false.  Off by default over TLS, since compressing
+    // other people's messages next to a session token would leak the token through message lengths.
+    private boolean compression = Boolean.parseBoolean(System.getProperty("chatroom.compress", String.valueOf(!this.tls)));
+    private boolean negotiating;
+    private final List<String> pendingWrites = new ArrayList<>();
+
+    // "[room#id] ..." on messages, "Room room is at #id." after login
+    private static final Pattern SEQUENCED = Pattern.compile("\\[(\\S+)#(\\d+)] .*");
+    private static final Pattern ROOM_LATEST = Pattern.compile("Room (\\S+) is at #(\\d+)\\.");
+
+    // newest message id seen per room, kept across reconnects
+    private final Map<String, Long> lastSeen = new HashMap<>();
+
+    // "Session saved.  Resume with /resume token" after login
+    private static final Pattern SESSION = Pattern.compile("Session saved\\.  Resume with /resume (\\S+)");
+    private static final Pattern DRAIN = Pattern.compile("Server is restarting\\.  Reconnect in (\\d+) ms\\.");
+    private volatile String sessionToken;
+    private volatile long reconnectAfter;
+
+    // how many times to retry a server that is still restarting, doubling the wait each time
+    private static final int RECONNECT_ATTEMPTS = 6;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+    private volatile boolean closed;
+
     private final PropertyChangeSupport boundProperties = new PropertyChangeSupport(this);
 
     public Client() {
@@ -30,25 +61,52 @@ public class Client implements AutoCloseable
         this.localOut = new PrintWriter(outputStream, true);
     }
 
+    /**
+     * Chooses whether to negotiate compression on the next connect
+     *
+     * @param compression true to request compression
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Chooses whether to use TLS on the next connect
+     *
+     * @param tls true to connect with TLS
+     */
+    public void setTls(boolean tls) {
+        this.tls = tls;
+    }
+
     public void connect(String ip, int port) {
         new Thread(() -> {
+            long delay = -1;
+            int attempt = 0;
             try {
-                // connect to server
-                clientSocket = new Socket(ip, port);
+                do {
+                    if (delay >= 0) {
+                        localOut.println("Reconnecting in " + delay + " ms...");
+                        Thread.sleep(delay);
+                        if (this.closed) break;
+                    }
 
-                // set input and output
-                socketOut = new PrintWriter(clientSocket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                    this.reconnectAfter = -1;
+                    boolean connected = this.run(ip, port);
 
-                String inputLine;
-                // read input until socket closes
-                while ((inputLine = in.readLine()) != null) {
-                    this.localOut.println(inputLine);
-                }
-            } catch (ConnectException connectException) {
-                localOut.println(connectException.getMessage() + ":\t The server is probably inactive.");
-            } catch (IOException ioexception) {
-                localOut.println("No longer connected: " + ioexception.getMessage());
+                    if (this.reconnectAfter >= 0) {
+                        // server is restarting and told us when to come back
+                        delay = this.reconnectAfter;
+                        attempt = 0;
+                    } else if (!connected && delay >= 0 && ++attempt < RECONNECT_ATTEMPTS) {
+                        // not back up yet
+                        delay = Math.min(delay * 2 + 100, MAX_RECONNECT_MILLIS);
+                    } else {
+                        delay = -1;
+                    }
+                } while (delay >= 0 && !this.closed);
+            } catch (InterruptedException interruptedException) {
+                localOut.println("Reconnect interrupted.");
             } finally {
                 this.close();
                 this.boundProperties.firePropertyChange("close", false, true);
@@ -56,19 +114,184 @@ public class Client implements AutoCloseable
         }).start();
     }
 
+    /**
+     * Talks to the server until the connection ends
+     *
+     * @param ip server address
+     * @param port server port
+     * @return true if the connection was made
+     */
+    private boolean run(String ip, int port) {
+        try {
+            // connect to server
+            Socket socket = new Socket(ip, port);
+            if (this.tls) {
+                try {
+                    // reconnects to the same server resume the TLS session
+                    Tls.Transport transport = Tls.client(socket, ip, port);
+                    transport.handshake();
+                    localOut.println("Connected with " + transport.describe() + '.');
+                    connection = new Connection(socket, transport.in(), transport.out());
+                } catch (IOException ioexception) {
+                    socket.close();
+                    throw ioexception;
+                }
+            } else {
+                connection = new Connection(socket);
+            }
+        } catch (ConnectException connectException) {
+            localOut.println(connectException.getMessage() + ":\t The server is probably inactive.");
+            return false;
+        } catch (IOException ioexception) {
+            localOut.println("Couldn't connect: " + ioexception.getMessage());
+            return false;
+        }
+
+        try {
+
+            // hold writes until the server answers
+            if (this.compression) {
+                synchronized (this.pendingWrites) {
+                    this.negotiating = true;
+                    connection.writeLine(Compression.REQUEST);
+                }
+            }
+
+            // pick up where a dropped or restarted connection left off
+            if (this.sessionToken != null) this.write("/resume " + this.sessionToken);
+
+            String inputLine;
+            // read input until socket closes
+            while ((inputLine = connection.readLine()) != null) {
+                if (this.negotiating) this.negotiate(inputLine);
+                this.localOut.println(inputLine);
+                this.track(inputLine);
+            }
+        } catch (IOException ioexception) {
+            localOut.println("No longer connected: " + ioexception.getMessage());
+        } finally {
+            localOut.println("Connection " + connection.stats());
+            connection.stopReading();
+            synchronized (this.pendingWrites) {
+                this.negotiating = false;
+                this.pendingWrites.clear();
+            }
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // already disconnected
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finishes compression negotiation once the server answers the request
+     *
+     * @param inputLine line from server
+     * @throws IOException Thrown when the socket fails
+     */
+    private void negotiate(String inputLine) throws IOException {
+        boolean accepted = inputLine.equals(Compression.ACK);
+        // older servers don't know the command
+        boolean refused = inputLine.startsWith("Command `" + Compression.REQUEST + "`");
+        if (!accepted && !refused) return;
+
+        synchronized (this.pendingWrites) {
+            if (accepted) {
+                connection.startInflate();
+                connection.startDeflate(null);
+            }
+            this.negotiating = false;
+
+            for (String msg : this.pendingWrites) {
+                connection.writeLine(msg);
+            }
+            this.pendingWrites.clear();
+        }
+    }
+
+    /**
+     * Watches message ids for gaps and asks the server for just the missing range
+     *
+     * @param inputLine line from server
+     */
+    private void track(String inputLine) {
+        Matcher message = SEQUENCED.matcher(inputLine);
+        if (message.matches()) {
+            this.seen(message.group(1), Long.parseLong(message.group(2)), false);
+            return;
+        }
+
+        Matcher latest = ROOM_LATEST.matcher(inputLine);
+        if (latest.matches()) {
+            this.seen(latest.group(1), Long.parseLong(latest.group(2)), true);
+            return;
+        }
+
+        Matcher session = SESSION.matcher(inputLine);
+        if (session.matches()) {
+            this.sessionToken = session.group(1);
+            return;
+        }
+        if (inputLine.startsWith("Session expired.")) {
+            this.sessionToken = null;
+            return;
+        }
+
+        Matcher drain = DRAIN.matcher(inputLine);
+        if (drain.matches()) {
+            this.reconnectAfter = Long.parseLong(drain.group(1));
+        }
+    }
+
+    private void seen(String room, long id, boolean latestOnly) {
+        Long last = this.lastSeen.get(room);
+
+        if (last != null && id > last + (latestOnly ? 0 : 1)) {
+            long missedTo = latestOnly ? id : id - 1;
+            localOut.println("Missed " + room + " #" + (last + 1) + (missedTo > last + 1 ? "-#" + missedTo : "") + ", requesting replay.");
+            this.write("/replay " + room + ' ' + (last + 1) + ' ' + missedTo);
+        }
+
+        // replayed messages are older than what was seen
+        if (last == null || id > last) this.lastSeen.put(room, id);
+    }
+
+    /**
+     * @param room room name, like all or @username
+     * @return newest message id seen in room, or 0 if none
+     */
+    public long lastSeen(String room) {
+        return this.lastSeen.getOrDefault(room, 0L);
+    }
+
     public void write(String msg) {
-        socketOut.println(msg);
+        // the server forgets the session too
+        if (msg.equals("/logout") || msg.equals("/exit")) this.sessionToken = null;
+
+        synchronized (this.pendingWrites) {
+            if (this.negotiating) {
+                this.pendingWrites.add(msg);
+                return;
+            }
+        }
+
+        try {
+            connection.writeLine(msg);
+        } catch (IOException ioexception) {
+            localOut.println("Error writing: " + ioexception.getMessage());
+        }
     }
 
     @Override
     public void close() {
+        this.closed = true;
         try {
-            if (this.clientSocket != null) clientSocket.close();
-            if (this.in != null) in.close();    // close after socket closes to interrupt readLine
+            if (this.connection != null) connection.close();
         } catch (IOException ioexception) {
             localOut.println("Error closing: " + ioexception.getMessage());
         }
-        if (this.socketOut != null) socketOut.close();
         localOut.close();
     }
 
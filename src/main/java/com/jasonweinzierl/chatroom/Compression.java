@@ -0,0 +1,67 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * chatroom
+ *
+ * Stream compression negotiated per connection.
+ * The client sends {@link #REQUEST}; the server answers {@link #ACK} in plain text
+ * and everything after that is a deflate stream, sync-flushed after each frame.
+ * Deflaters and inflaters hold native zlib memory, so they are pooled
+ * instead of being created and ended for every connection.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Compression
+{
+    static final String REQUEST = "/compress";
+    static final String ACK = "Compression on.";
+
+    /**
+     * Frames smaller than this are sent as stored blocks, since deflating them costs more CPU than it saves.
+     */
+    static final int THRESHOLD = 128;
+
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {
+    }
+
+    static Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    static void release(Deflater deflater) {
+        // queue size is linear, but a loose bound is fine here
+        if (deflaters.size() < MAX_POOLED) {
+            deflater.reset();
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+            deflaters.add(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    static Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    static void release(Inflater inflater) {
+        if (inflaters.size() < MAX_POOLED) {
+            inflater.reset();
+            inflaters.add(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.jasonweinzierl.chatroom;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * chatroom
+ *
+ * Line-oriented UTF-8 transport over a socket, shared by {@link Server} and {@link Client}.
+ * Reads never consume bytes past the current line, so either direction can
+ * switch to a deflate stream between two lines without losing data.
+ * Writes may come from any thread; reads only from the connection's own thread.
+ * Buffers come from {@link BufferPool} and are held only while a line is in flight,
+ * so an idle connection keeps close to nothing on the heap.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Connection implements AutoCloseable
+{
+    private final Socket socket;
+
+    private static final ThreadLocal<CharsetEncoder> encoder = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    // input, owned by the reading thread
+    private final CountingInputStream wireIn;
+    private InputStream in;
+    private Inflater inflater;
+    private ByteBuffer readBuffer;    // null between lines
+    private int position;
+    private int limit;
+    private long rawBytesIn;
+
+    // output, guarded by writeLock
+    private final Object writeLock = new Object();
+    private final CountingOutputStream wireOut;
+    private Deflater deflater;
+    private int level;
+    private long rawBytesOut;
+    private boolean closed;
+
+    Connection(Socket socket) throws IOException {
+        this(socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    /**
+     * @param socket socket to close when done
+     * @param in stream read from the socket, like a {@link Tls.Transport}'s
+     * @param out stream written to the socket, flushed after every frame
+     */
+    Connection(Socket socket, InputStream in, OutputStream out) {
+        this.socket = socket;
+        this.wireIn = new CountingInputStream(in);
+        this.in = this.wireIn;
+        this.wireOut = new CountingOutputStream(out);
+    }
+
+    Socket socket() {
+        return this.socket;
+    }
+
+    /**
+     * Reads the next line, without its terminator
+     *
+     * @return line, or null at end of stream
+     * @throws IOException Thrown when the socket fails
+     */
+    String readLine() throws IOException {
+        try {
+            ByteArrayOutputStream longLine = null;
+            while (true) {
+                // look for a line ending in what's buffered
+                byte []buffer = readBuffer == null ? null : readBuffer.array();
+                for (int i = position; i < limit; i++) {
+                    if (buffer[i] != '\n') continue;
+
+                    String line = this.decode(longLine, i);
+                    position = i + 1;
+                    if (position == limit) this.releaseReadBuffer();
+                    return line;
+                }
+
+                if (buffer == null) {
+                    // between lines, wait for the next byte without holding any buffer
+                    BufferPool.trim();
+                    int first = this.read();
+                    if (first < 0) {
+                        this.releaseInflater();
+                        return null;
+                    }
+                    readBuffer = BufferPool.borrow(BufferPool.MEDIUM);
+                    readBuffer.array()[0] = (byte) first;
+                    position = 0;
+                    limit = 1;
+                    continue;
+                }
+
+                // mid-line, make room and read the rest
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                }
+                if (limit == buffer.length) {
+                    if (longLine == null) longLine = new ByteArrayOutputStream();
+                    longLine.write(buffer, 0, limit);
+                    limit = 0;
+                }
+
+                int read = this.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    String line = this.decode(longLine, limit);
+                    this.releaseReadBuffer();
+                    this.releaseInflater();
+                    return line;
+                }
+                limit += read;
+            }
+        } catch (IOException ioException) {
+            this.releaseReadBuffer();
+            this.releaseInflater();
+            throw ioException;
+        }
+    }
+
+    private int read() throws IOException {
+        try {
+            return in.read();
+        } catch (EOFException truncated) {
+            // peer closed without finishing its deflate stream
+            if (inflater == null) throw truncated;
+            return -1;
+        }
+    }
+
+    private int read(byte []buffer, int offset, int length) throws IOException {
+        try {
+            return in.read(buffer, offset, length);
+        } catch (EOFException truncated) {
+            if (inflater == null) throw truncated;
+            return -1;
+        }
+    }
+
+    private void releaseReadBuffer() {
+        if (readBuffer == null) return;
+        BufferPool.release(readBuffer);
+        readBuffer = null;
+        position = 0;
+        limit = 0;
+    }
+
+    private String decode(ByteArrayOutputStream longLine, int end) {
+        byte []buffer = readBuffer.array();
+        byte []bytes;
+        int offset;
+        int length;
+        if (longLine == null) {
+            bytes = buffer;
+            offset = position;
+            length = end - position;
+        } else {
+            longLine.write(buffer, position, end - position);
+            bytes = longLine.toByteArray();
+            offset = 0;
+            length = bytes.length;
+        }
+        rawBytesIn += length + 1;
+
+        // tolerate \r\n
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Treats everything after the last line read as a deflate stream.
+     * Only call from the reading thread.
+     */
+    void startInflate() {
+        if (this.inflater != null) return;
+
+        // bytes already buffered past the last line are compressed too
+        InputStream source = this.wireIn;
+        if (position < limit) {
+            byte []leftover = Arrays.copyOfRange(readBuffer.array(), position, limit);
+            source = new SequenceInputStream(new ByteArrayInputStream(leftover), this.wireIn);
+        }
+        this.releaseReadBuffer();
+
+        this.inflater = Compression.borrowInflater();
+        this.in = new InflaterInputStream(source, this.inflater, 512);
+    }
+
+    /**
+     * Returns the read buffer and inflater to their pools.
+     * Only call from the reading thread, once it has stopped reading.
+     */
+    void stopReading() {
+        this.releaseReadBuffer();
+        this.releaseInflater();
+    }
+
+    private void releaseInflater() {
+        if (this.inflater == null) return;
+        Compression.release(this.inflater);
+        this.inflater = null;
+        this.in = this.wireIn;
+    }
+
+    /**
+     * Writes a line from any thread
+     *
+     * @param line text without terminator
+     * @return number of uncompressed bytes written
+     * @throws IOException Thrown when the socket fails
+     */
+    int writeLine(String line) throws IOException {
+        return this.writeText(line + '\n');
+    }
+
+    private int writeText(String text) throws IOException {
+        // UTF-8 takes at most three bytes per char
+        int maxBytes = text.length() * 3;
+        if (maxBytes > BufferPool.LARGE) {
+            byte []bytes = text.getBytes(StandardCharsets.UTF_8);
+            this.writeBytes(bytes, bytes.length);
+            return bytes.length;
+        }
+
+        ByteBuffer buffer = BufferPool.borrow(maxBytes);
+        try {
+            CharsetEncoder utf8 = encoder.get().reset();
+            utf8.encode(CharBuffer.wrap(text), buffer, true);
+            utf8.flush(buffer);
+
+            this.writeBytes(buffer.array(), buffer.position());
+            return buffer.position();
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    private void writeBytes(byte []bytes, int length) throws IOException {
+        synchronized (writeLock) {
+            if (closed) throw new IOException("Connection closed");
+
+            if (deflater != null) {
+                this.deflate(bytes, length);
+            } else {
+                wireOut.write(bytes, 0, length);
+            }
+            wireOut.flush();
+            rawBytesOut += length;
+        }
+    }
+
+    /**
+     * Deflates one frame and sync-flushes it, so the peer can read it right away
+     *
+     * @param bytes uncompressed frame
+     * @param length length of frame
+     * @throws IOException Thrown when the socket fails
+     */
+    private void deflate(byte []bytes, int length) throws IOException {
+        ByteBuffer deflated = BufferPool.borrow(BufferPool.MEDIUM);
+        try {
+            // tiny frames go out as stored blocks
+            int frameLevel = length < Compression.THRESHOLD ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+            if (frameLevel != level) {
+                // a level change only applies to input given after it takes effect
+                deflater.setLevel(frameLevel);
+                deflater.setInput(bytes, 0, 0);
+                this.drain(deflated.array(), Deflater.NO_FLUSH);
+                level = frameLevel;
+            }
+
+            deflater.setInput(bytes, 0, length);
+            this.drain(deflated.array(), Deflater.SYNC_FLUSH);
+        } finally {
+            BufferPool.release(deflated);
+        }
+    }
+
+    private void drain(byte []deflated, int flush) throws IOException {
+        int length;
+        do {
+            length = deflater.deflate(deflated, 0, deflated.length, flush);
+            wireOut.write(deflated, 0, length);
+        } while (length == deflated.length || !deflater.needsInput());
+    }
+
+    /**
+     * Writes a line in plain text, then deflates everything after it
+     *
+     * @param line last plain line, or null for none
+     * @throws IOException Thrown when the socket fails
+     */
+    void startDeflate(String line) throws IOException {
+        synchronized (writeLock) {
+            if (line != null) this.writeLine(line);
+            if (deflater != null) return;
+
+            deflater = Compression.borrowDeflater();
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    boolean isCompressed() {
+        synchronized (writeLock) {
+            return deflater != null;
+        }
+    }
+
+    /**
+     * Adapts the connection for a {@link PrintWriter}.
+     * Text is held until the writer flushes, then sent as one frame.
+     *
+     * @return writer for this connection
+     */
+    Writer writer() {
+        return new Writer() {
+            // dropped after each flush so an idle writer holds nothing
+            private StringBuilder pending;
+
+            @Override
+            public void write(char []chars, int offset, int length) {
+                if (pending == null) pending = new StringBuilder(Math.max(length, 64));
+                pending.append(chars, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (pending == null) return;
+                String text = pending.toString();
+                pending = null;
+                writeText(text);
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.flush();
+            }
+        };
+    }
+
+    long rawBytesIn() {
+        return rawBytesIn;
+    }
+
+    long wireBytesIn() {
+        return wireIn.count;
+    }
+
+    long rawBytesOut() {
+        synchronized (writeLock) {
+            return rawBytesOut;
+        }
+    }
+
+    long wireBytesOut() {
+        synchronized (writeLock) {
+            return wireOut.count;
+        }
+    }
+
+    /**
+     * @return bytes sent and received, before and after compression
+     */
+    String stats() {
+        long rawOut = this.rawBytesOut();
+        long wireOutCount = this.wireBytesOut();
+        long rawIn = this.rawBytesIn();
+        long wireInCount = this.wireBytesIn();
+        return "sent " + rawOut + " B as " + wireOutCount + " B (" + ratio(wireOutCount, rawOut) + "), "
+                + "received " + rawIn + " B as " + wireInCount + " B (" + ratio(wireInCount, rawIn) + ")";
+    }
+
+    private static String ratio(long wire, long raw) {
+        return raw == 0 ? "-" : (wire * 100 / raw) + "%";
+    }
+
+    /**
+     * Closes the socket.  Safe to call from any thread, more than once.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+            if (deflater != null) {
+                Compression.release(deflater);
+                deflater = null;
+            }
+        }
+        socket.close();
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte []b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte []b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.jasonweinzierl.chatroom;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * chatroom
+ *
+ * Asynchronous, typed alternative to the server's property change support.
+ * Publishers claim a slot in a ring buffer with one atomic increment and never block,
+ * and never overwrite a slot with an event older than the one already in it.
+ * Each subscription reads the ring on its own thread with its own cursor,
+ * applying its filter and handing events to its listener in batches.
+ * A subscriber that falls a whole ring behind skips ahead and counts what it missed,
+ * so a slow plugin can't slow chat down.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+public final class EventBus implements AutoCloseable
+{
+    private final AtomicReferenceArray<ChatEvent> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(0);
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean hasSubscribers;
+
+    private final PrintWriter log;
+
+    /**
+     * @param capacity ring size, rounded up to a power of two
+     * @param log where listener failures are reported
+     */
+    EventBus(int capacity, PrintWriter log) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.log = log;
+    }
+
+    /**
+     * Cheap check so callers can skip building events nobody will see
+     *
+     * @return true if anyone is subscribed
+     */
+    boolean hasSubscribers() {
+        return this.hasSubscribers;
+    }
+
+    /**
+     * Publishes an event from any thread without blocking
+     *
+     * @param event event to publish
+     */
+    void publish(ChatEvent event) {
+        long sequence = this.next.getAndIncrement();
+        event.sequence = sequence;
+
+        // a publisher paused between claiming and storing may find its slot already
+        // reused by an event a whole ring later; then its event is the one lost,
+        // and subscribers see the newer sequence and count the gap as dropped
+        int slot = (int) (sequence & this.mask);
+        while (true) {
+            ChatEvent current = this.ring.get(slot);
+            if (current != null && current.sequence > sequence) return;
+            // volatile store publishes the sequence along with the event
+            if (this.ring.compareAndSet(slot, current, event)) return;
+        }
+    }
+
+    /**
+     * Starts a subscription at the next published event
+     *
+     * @param listener receives batches of matching events
+     * @param filter which events to deliver
+     * @param maxBatch most events per call to the listener
+     * @return subscription to close when done
+     */
+    Subscription subscribe(ChatEventListener listener, Predicate<ChatEvent> filter, int maxBatch) {
+        Subscription subscription = new Subscription(listener, filter, Math.max(1, maxBatch), this.next.get());
+        this.subscriptions.add(subscription);
+        this.hasSubscribers = true;
+        subscription.thread.start();
+        return subscription;
+    }
+
+    /**
+     * Stops every subscription
+     */
+    @Override
+    public void close() {
+        for (Subscription subscription : this.subscriptions) {
+            subscription.close();
+        }
+    }
+
+    /**
+     * A listener reading the ring on its own thread
+     */
+    public final class Subscription implements AutoCloseable {
+        private final ChatEventListener listener;
+        private final Predicate<ChatEvent> filter;
+        private final int maxBatch;
+        private final Thread thread;
+
+        private long cursor;
+        private volatile boolean open = true;
+        private volatile long dropped;
+
+        private Subscription(ChatEventListener listener, Predicate<ChatEvent> filter, int maxBatch, long start) {
+            this.listener = listener;
+            this.filter = filter;
+            this.maxBatch = maxBatch;
+            this.cursor = start;
+            this.thread = new Thread(this::run, "events-" + listener.getClass().getSimpleName());
+            this.thread.setDaemon(true);
+        }
+
+        private void run() {
+            List<ChatEvent> batch = new ArrayList<>(this.maxBatch);
+            int idle = 0;
+            while (this.open) {
+                this.poll(batch);
+
+                if (batch.isEmpty()) {
+                    // back off from spinning to parking while quiet
+                    if (++idle < 100) Thread.onSpinWait();
+                    else LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(idle - 99, 10)));
+                    continue;
+                }
+                idle = 0;
+
+                try {
+                    this.listener.onEvents(Collections.unmodifiableList(new ArrayList<>(batch)));
+                } catch (RuntimeException runtimeException) {
+                    log.println("Event listener failed: " + runtimeException);
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Reads published events into batch until it is full or the ring runs dry
+         *
+         * @param batch batch to fill
+         */
+        private void poll(List<ChatEvent> batch) {
+            long scanned = 0;
+            while (batch.size() < this.maxBatch && scanned < ring.length()) {
+                ChatEvent event = ring.get((int) (this.cursor & mask));
+                if (event == null || event.sequence < this.cursor) return;    // not published yet
+
+                if (event.sequence > this.cursor) {
+                    // overwritten before we got here, skip to the oldest event still in the ring
+                    long oldest = Math.max(this.cursor + 1, next.get() - ring.length());
+                    this.dropped += oldest - this.cursor;
+                    this.cursor = oldest;
+                    continue;
+                }
+
+                this.cursor++;
+                scanned++;
+                if (this.filter.test(event)) batch.add(event);
+            }
+        }
+
+        /**
+         * @return events this subscriber missed by falling behind
+         */
+        public long dropped() {
+            return this.dropped;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+            LockSupport.unpark(this.thread);
+            subscriptions.remove(this);
+            hasSubscribers = !subscriptions.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * chatroom
+ *
+ * Open-addressing hash map keyed by primitive {@code int}s,
+ * so lookups on hot paths don't box keys or chase entry nodes.
+ * Uses linear probing with backward-shift deletion, so there are no tombstones.
+ * Not thread-safe.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ *
+ * @param <V> value type
+ */
+final class IntMap<V>
+{
+    /**
+     * Marks an empty slot, so it can't be used as a key.
+     */
+    static final int FREE = Integer.MIN_VALUE;
+
+    private int []keys;
+    private Object []values;
+    private int mask;
+    private int size;
+
+    IntMap() {
+        this(16);
+    }
+
+    IntMap(int expectedSize) {
+        // keep load factor at or below one half
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new int[capacity];
+        Arrays.fill(this.keys, FREE);
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = mix(key) & mask;
+        while (keys[i] != FREE && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        int i = this.slot(key);
+        return keys[i] == FREE ? null : (V) values[i];
+    }
+
+    boolean containsKey(int key) {
+        return keys[this.slot(key)] != FREE;
+    }
+
+    /**
+     * Associates value with key
+     *
+     * @param key any int except {@link #FREE}
+     * @param value value to store
+     * @return previous value, or null
+     */
+    @SuppressWarnings("unchecked")
+    V put(int key, V value) {
+        if (key == FREE) throw new IllegalArgumentException("Reserved key: " + key);
+
+        int i = this.slot(key);
+        if (keys[i] == key) {
+            V previous = (V) values[i];
+            values[i] = value;
+            return previous;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) this.rehash(keys.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int key) {
+        int i = this.slot(key);
+        if (keys[i] == FREE) return null;
+
+        V previous = (V) values[i];
+        size--;
+
+        // shift following entries of the probe run back into the hole
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == FREE) break;
+
+            int home = mix(keys[j]) & mask;
+            // move j into the hole unless its home lies cyclically in (hole, j]
+            boolean stays = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!stays) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = FREE;
+        values[hole] = null;
+
+        return previous;
+    }
+
+    private void rehash(int capacity) {
+        int []oldKeys = this.keys;
+        Object []oldValues = this.values;
+        this.allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) continue;
+            int slot = this.slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Visits every entry
+     *
+     * @param action receives each value and its key
+     */
+    @SuppressWarnings("unchecked")
+    void forEach(ObjIntConsumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) action.accept((V) values[i], keys[i]);
+        }
+    }
+}
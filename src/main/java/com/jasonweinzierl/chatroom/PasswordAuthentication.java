@@ -8,6 +8,7 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,6 +18,11 @@ import java.util.regex.Pattern;
  * Passwords should be stored in a {@code char[]} so that it can be filled
  * with zeros after use instead of lingering on the heap and elsewhere.
  *
+ * Tokens record their algorithm and strength, so {@link #calibrate(long)} can pick
+ * a strength that fits a time budget on this machine without breaking stored tokens.
+ * Tokens made with another algorithm or strength still verify,
+ * and {@link #needsRehash(String)} tells when to replace them.
+ *
  * @author JasonWeinzierl
  * @version 2019-04-19
  */
@@ -27,16 +33,35 @@ public class PasswordAuthentication
      */
     public static final String ID = "$32$";
 
+    /**
+     * Identifier prefix for tokens hashed with HMAC-SHA256.
+     */
+    public static final String SHA256_ID = "$33$";
+
     public static final int DEFAULT_STRENGTH = 65536;
 
     private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
 
+    private static final String SHA256_ALGORITHM = "PBKDF2WithHmacSHA256";
+
     private static final int KEY_LENGTH = 128;
 
-    private static final Pattern LAYOUT = Pattern.compile("\\$32\\$(\\d+)\\$(.{43})");
+    private static final Pattern LAYOUT = Pattern.compile("(\\$3[23]\\$)(\\d+)\\$(.{43})");
+
+    // calibrated strengths stay within these, whatever the machine
+    private static final int MIN_STRENGTH = 10000;
+    private static final int MAX_STRENGTH = 10000000;
+
+    private static final long WARM_UP_ITERATIONS = 500000;
+    private static final long MAX_CALIBRATION_MILLIS = 5000;
+
+    // stored strengths this far off are rehashed, so timing noise between restarts doesn't rehash everyone
+    private static final double REHASH_TOLERANCE = 0.25;
 
     private final SecureRandom random;
 
+    private final String id;
+
     private final int strength;
 
     public PasswordAuthentication() {
@@ -44,10 +69,79 @@ public class PasswordAuthentication
     }
 
     public PasswordAuthentication(int strength) {
+        this(ID, strength);
+    }
+
+    /**
+     * @param id {@link #ID} or {@link #SHA256_ID}, the algorithm for new tokens
+     * @param strength iterations for new tokens
+     */
+    public PasswordAuthentication(String id, int strength) {
+        algorithm(id);
+        this.id = id;
         this.strength = strength;
         this.random = new SecureRandom();
     }
 
+    /**
+     * Picks the HMAC-SHA256 strength that takes about the budget to hash one password on this machine
+     *
+     * @param budgetMillis CPU time one login may spend hashing
+     * @return authenticator hashing at the calibrated strength
+     */
+    public static PasswordAuthentication calibrate(long budgetMillis) {
+        char []password = "calibration".toCharArray();
+        byte []salt = new byte[KEY_LENGTH / 8];
+        long budget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+
+        // hashing is slow until the JIT compiles it, which takes a few hundred thousand iterations,
+        // so measure until then and until it stops getting faster
+        long strength = MIN_STRENGTH;
+        double fastest = Double.MAX_VALUE;      // nanoseconds per iteration
+        double []recent = new double[5];
+        int runs = 0;
+        int unchanged = 0;
+        long iterations = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_CALIBRATION_MILLIS);
+        while ((unchanged < 5 || iterations < WARM_UP_ITERATIONS) && System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            pbkdf2(SHA256_ALGORITHM, password, salt, (int) strength);
+            double perIteration = (double) (System.nanoTime() - start) / strength;
+            iterations += strength;
+            recent[runs++ % recent.length] = perIteration;
+
+            unchanged = perIteration < fastest * 0.9 ? 0 : unchanged + 1;
+            fastest = Math.min(fastest, perIteration);
+
+            // next run at the strength the budget allows so far
+            strength = Math.max(MIN_STRENGTH, Math.min(MAX_STRENGTH, (long) (budget / fastest)));
+        }
+
+        // the median of the last few runs, since one lucky run would overshoot the budget
+        if (runs >= recent.length) {
+            Arrays.sort(recent);
+            strength = Math.max(MIN_STRENGTH, Math.min(MAX_STRENGTH, (long) (budget / recent[recent.length / 2])));
+        }
+
+        // round to a thousand so the same machine usually lands on the same strength
+        strength = Math.round(strength / 1000.0) * 1000;
+        return new PasswordAuthentication(SHA256_ID, (int) strength);
+    }
+
+    /**
+     * @return algorithm new tokens are hashed with
+     */
+    public String getAlgorithm() {
+        return algorithm(this.id);
+    }
+
+    /**
+     * @return iterations new tokens are hashed with
+     */
+    public int getStrength() {
+        return this.strength;
+    }
+
     /**
      * Hash password for storage
      *
@@ -60,7 +154,7 @@ public class PasswordAuthentication
         random.nextBytes(salt);
 
         // hash
-        byte []derivedKey = pbkdf2(password, salt, this.strength);
+        byte []derivedKey = pbkdf2(algorithm(this.id), password, salt, this.strength);
 
         // copy into hash
         byte []hash = new byte[salt.length + derivedKey.length];
@@ -68,7 +162,7 @@ public class PasswordAuthentication
         System.arraycopy(derivedKey, 0, hash, salt.length, derivedKey.length);
 
         // unite identifier, strength, and hash
-        return PasswordAuthentication.ID + this.strength + '$' + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        return this.id + this.strength + '$' + Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
     }
 
     /**
@@ -80,18 +174,15 @@ public class PasswordAuthentication
      */
     public boolean verify(char []password, String authToken) {
         // make sure proper format (identifier, strength, salt, hashed password)
-        Matcher matcher = PasswordAuthentication.LAYOUT.matcher(authToken);
-        if (!matcher.matches()) {
-            throw new IllegalArgumentException("Invalid authentication token format.");
-        }
+        Matcher matcher = PasswordAuthentication.parse(authToken);
 
         // get hash from token
-        byte []hash = Base64.getUrlDecoder().decode(matcher.group(2));
+        byte []hash = Base64.getUrlDecoder().decode(matcher.group(3));
 
-        // hash password to be verified
-        int strength = Integer.parseInt(matcher.group(1));
+        // hash password to be verified, the way the token was made
+        int strength = Integer.parseInt(matcher.group(2));
         byte []salt = Arrays.copyOfRange(hash, 0, KEY_LENGTH / 8);
-        byte []check = pbkdf2(password, salt, strength);
+        byte []check = pbkdf2(algorithm(matcher.group(1)), password, salt, strength);
 
         // compare password with hash
         int zero = 0;
@@ -101,16 +192,65 @@ public class PasswordAuthentication
         return zero == 0;
     }
 
-    private static byte []pbkdf2(char []password, byte []salt, int strength) {
+    /**
+     * Checks whether a token was made with a different algorithm or strength than new tokens,
+     * so it should be replaced with a fresh hash after the next successful {@link #verify(char[], String)}
+     *
+     * @param authToken authentication token
+     * @return true if the token should be rehashed
+     */
+    public boolean needsRehash(String authToken) {
+        Matcher matcher = PasswordAuthentication.parse(authToken);
+        if (!matcher.group(1).equals(this.id)) return true;
+
+        int strength = Integer.parseInt(matcher.group(2));
+        return !this.isCloseTo(strength);
+    }
+
+    /**
+     * Checks whether another authenticator makes tokens this one wouldn't rehash,
+     * so switching to it would only be timing noise
+     *
+     * @param other authenticator to compare with
+     * @return true if both use the same algorithm at a strength within tolerance
+     */
+    public boolean isCloseTo(PasswordAuthentication other) {
+        return this.id.equals(other.id) && this.isCloseTo(other.strength);
+    }
+
+    private boolean isCloseTo(int strength) {
+        return Math.abs(strength - this.strength) <= this.strength * REHASH_TOLERANCE;
+    }
+
+    private static Matcher parse(String authToken) {
+        Matcher matcher = PasswordAuthentication.LAYOUT.matcher(authToken);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid authentication token format.");
+        }
+        return matcher;
+    }
+
+    private static String algorithm(String id) {
+        switch (id) {
+            case ID:
+                return ALGORITHM;
+            case SHA256_ID:
+                return SHA256_ALGORITHM;
+            default:
+                throw new IllegalArgumentException("Unknown identifier: " + id);
+        }
+    }
+
+    private static byte []pbkdf2(String algorithm, char []password, byte []salt, int strength) {
         // set up key material
         KeySpec spec = new PBEKeySpec(password, salt, strength, KEY_LENGTH);
 
         // hash with factory
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance(PasswordAuthentication.ALGORITHM);
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
             return factory.generateSecret(spec).getEncoded();
         } catch (NoSuchAlgorithmException n) {
-            throw new IllegalStateException("Missing algorithm: " + PasswordAuthentication.ALGORITHM, n);
+            throw new IllegalStateException("Missing algorithm: " + algorithm, n);
         } catch (InvalidKeySpecException i) {
             throw new IllegalStateException("Invalid SecretKeyFactory", i);
         }
@@ -0,0 +1,194 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * chatroom
+ *
+ * Tracks who is logged in and coalesces join and leave changes.
+ * Changes made within one window are delivered together as a single delta,
+ * so a burst of N logins costs N writes instead of N squared.
+ * Logged in users are kept in a concurrent skip list ordered by case-folded name,
+ * so /who can seek to a prefix or to where the last page ended and read one page without scanning the room.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Presence implements AutoCloseable
+{
+    /**
+     * A logged in user as shown by /who
+     */
+    static final class Entry {
+        final String username;
+        final int clientId;
+        final String address;
+
+        Entry(String username, int clientId, String address) {
+            this.username = username;
+            this.clientId = clientId;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Receives each coalesced delta
+     */
+    interface Listener {
+        void deliver(String delta);
+    }
+
+    private static final class Change {
+        final String username;
+        final boolean joined;
+        final boolean newAccount;
+
+        Change(String username, boolean joined, boolean newAccount) {
+            this.username = username;
+            this.joined = joined;
+            this.newAccount = newAccount;
+        }
+    }
+
+    private final long windowMillis;
+    private final Listener listener;
+
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService flusher;
+
+    private final ConcurrentNavigableMap<String, Entry> index = new ConcurrentSkipListMap<>();
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    Presence(long windowMillis, Listener listener) {
+        this.windowMillis = windowMillis;
+        this.listener = listener;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Records a login
+     *
+     * @param username user that logged in
+     * @param clientId client the user is on
+     * @param address remote address of the client
+     * @param newAccount true if the account was just created
+     */
+    void joined(String username, int clientId, String address, boolean newAccount) {
+        if (this.index.put(UserTable.fold(username), new Entry(username, clientId, address)) == null) {
+            this.count.incrementAndGet();
+        }
+        this.publish(new Change(username, true, newAccount));
+    }
+
+    /**
+     * Records a logout or disconnect.  Ignored if the user has since logged in on another client.
+     *
+     * @param username user that left
+     * @param clientId client the user left from
+     */
+    void left(String username, int clientId) {
+        String key = UserTable.fold(username);
+        Entry entry = this.index.get(key);
+        if (entry == null || entry.clientId != clientId || !this.index.remove(key, entry)) return;
+
+        this.count.decrementAndGet();
+        this.publish(new Change(username, false, false));
+    }
+
+    /**
+     * @return number of logged in users
+     */
+    int count() {
+        return this.count.get();
+    }
+
+    /**
+     * Gets one page of logged in users whose names start with a prefix, ordered by name.
+     * Each page seeks straight to its first entry, so deep pages cost the same as the first.
+     *
+     * @param prefix case-insensitive name prefix, empty for everyone
+     * @param after last name of the previous page, or null for the first page
+     * @param pageSize maximum entries per page
+     * @param more set to true in {@code more[0]} if another page follows
+     * @return at most pageSize entries
+     */
+    List<Entry> page(String prefix, String after, int pageSize, boolean []more) {
+        String from = UserTable.fold(prefix);
+
+        // seek past the previous page, or to the first match
+        NavigableMap<String, Entry> tail = this.index.tailMap(from, true);
+        if (after != null && UserTable.fold(after).compareTo(from) >= 0) {
+            tail = this.index.tailMap(UserTable.fold(after), false);
+        }
+
+        Iterator<Map.Entry<String, Entry>> matches = tail.entrySet().iterator();
+        List<Entry> entries = new ArrayList<>(pageSize);
+        more[0] = false;
+        while (matches.hasNext()) {
+            Map.Entry<String, Entry> match = matches.next();
+            if (!match.getKey().startsWith(from)) break;
+
+            if (entries.size() < pageSize) {
+                entries.add(match.getValue());
+            } else {
+                more[0] = true;
+                break;
+            }
+        }
+        return entries;
+    }
+
+    private void publish(Change change) {
+        this.pending.add(change);
+
+        // first change of a window schedules its flush
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.flusher.schedule(this::flush, this.windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException closed) {
+                this.scheduled.set(false);
+            }
+        }
+    }
+
+    private void flush() {
+        this.scheduled.set(false);
+
+        // net effect per user, so a quick reconnect cancels out
+        Map<String, Integer> net = new LinkedHashMap<>();
+        Set<String> newAccounts = new HashSet<>();
+        Change change;
+        while ((change = this.pending.poll()) != null) {
+            net.merge(change.username, change.joined ? 1 : -1, Integer::sum);
+            if (change.newAccount) newAccounts.add(change.username);
+        }
+
+        StringJoiner joined = new StringJoiner(", ");
+        StringJoiner left = new StringJoiner(", ");
+        net.forEach((username, count) -> {
+            if (count > 0) joined.add(newAccounts.contains(username) ? username + " (new account)" : username);
+            else if (count < 0) left.add(username);
+        });
+
+        StringBuilder delta = new StringBuilder();
+        if (joined.length() > 0) delta.append(joined).append(" logged in.");
+        if (left.length() > 0) {
+            if (delta.length() > 0) delta.append(' ');
+            delta.append(left).append(" logged out.");
+        }
+        if (delta.length() > 0) this.listener.deliver(delta.toString());
+    }
+
+    @Override
+    public void close() {
+        this.flusher.shutdownNow();
+    }
+}
@@ -0,0 +1,478 @@
+package com.jasonweinzierl.chatroom;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * chatroom
+ *
+ * Incremental inverted index over chat history.
+ * Messages are queued after delivery and indexed on a background thread,
+ * so delivery never waits on the index.  The queue counts against the memory budget,
+ * and messages that arrive while it is full are dropped from the index rather than held.  New messages go into a small mutable segment;
+ * full segments are sealed into sorted term dictionaries with delta and varint
+ * compressed posting lists, and small neighbouring segments are merged in the background.
+ * When the index grows past its memory budget the oldest segments are dropped.
+ *
+ * The sender is indexed as the term {@code from:name}, so filtering by user is just another term.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class SearchIndex implements AutoCloseable
+{
+    /**
+     * A message found by a search
+     */
+    static final class Hit {
+        final long id;
+        final String user;
+        final String text;
+
+        Hit(long id, String user, String text) {
+            this.id = id;
+            this.user = user;
+            this.text = text;
+        }
+    }
+
+    private static final int SEGMENT_SIZE = 4096;       // messages per sealed segment before merging
+    private static final int MAX_SEGMENTS = 8;          // merge once there are more sealed segments than this
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final String FROM = "from:";
+    private static final int QUEUE_SHARE = 8;           // the queue may hold this fraction of the memory budget
+
+    private static final class Pending {
+        final long id;
+        final String user;
+        final String text;
+
+        Pending(long id, String user, String text) {
+            this.id = id;
+            this.user = user;
+            this.text = text;
+        }
+
+        long bytes() {
+            return 32 + 2L * (user.length() + text.length());
+        }
+    }
+
+    /**
+     * Stored messages and postings shared by both segment kinds
+     */
+    private abstract static class Segment {
+        long []ids;
+        String []users;
+        String []texts;
+        int size;
+
+        abstract int []postings(String term);
+
+        abstract long bytes();
+    }
+
+    /**
+     * Segment being written by the indexer thread.  Readers lock it.
+     */
+    private static final class MutableSegment extends Segment {
+        private final Map<String, int[]> postings = new HashMap<>();    // term to [count, doc, doc, ...]
+        private long bytes;
+
+        MutableSegment() {
+            this.ids = new long[SEGMENT_SIZE];
+            this.users = new String[SEGMENT_SIZE];
+            this.texts = new String[SEGMENT_SIZE];
+        }
+
+        synchronized void add(long id, String user, String text, Collection<String> terms) {
+            int doc = size;
+            ids[doc] = id;
+            users[doc] = user;
+            texts[doc] = text;
+            size++;
+            bytes += 16 + 2L * (user.length() + text.length());
+
+            for (String term : terms) {
+                int []list = postings.get(term);
+                if (list == null) {
+                    list = new int[4];
+                    bytes += 32 + 2L * term.length();
+                } else if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                }
+                list[++list[0]] = doc;
+                postings.put(term, list);
+                bytes += 4;
+            }
+        }
+
+        @Override
+        synchronized int []postings(String term) {
+            int []list = postings.get(term);
+            return list == null ? null : Arrays.copyOfRange(list, 1, list[0] + 1);
+        }
+
+        @Override
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        boolean isFull() {
+            return size == SEGMENT_SIZE;
+        }
+    }
+
+    /**
+     * Read-only segment with a sorted term dictionary and compressed postings
+     */
+    private static final class SealedSegment extends Segment {
+        private final String []terms;
+        private final int []offsets;       // start of each term's postings, plus end
+        private final byte []postings;     // delta and varint encoded doc numbers
+        private final long bytes;
+
+        SealedSegment(long []ids, String []users, String []texts, int size, SortedMap<String, int[]> lists) {
+            this.ids = ids;
+            this.users = users;
+            this.texts = texts;
+            this.size = size;
+
+            this.terms = lists.keySet().toArray(new String[0]);
+            this.offsets = new int[terms.length + 1];
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            int t = 0;
+            long termBytes = 0;
+            for (int []docs : lists.values()) {
+                offsets[t] = encoded.size();
+                termBytes += 40 + 2L * terms[t].length();
+                int previous = 0;
+                for (int doc : docs) {
+                    writeVarint(encoded, doc - previous);
+                    previous = doc;
+                }
+                t++;
+            }
+            offsets[t] = encoded.size();
+            this.postings = encoded.toByteArray();
+
+            long stored = 0;
+            for (int i = 0; i < size; i++) {
+                stored += 16 + 2L * (users[i].length() + texts[i].length());
+            }
+            this.bytes = stored + termBytes + postings.length;
+        }
+
+        @Override
+        int []postings(String term) {
+            int t = Arrays.binarySearch(terms, term);
+            if (t < 0) return null;
+
+            int []docs = new int[offsets[t + 1] - offsets[t]];
+            int count = 0;
+            int doc = 0;
+            int position = offsets[t];
+            while (position < offsets[t + 1]) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += delta;
+                docs[count++] = doc;
+            }
+            return Arrays.copyOf(docs, count);
+        }
+
+        @Override
+        long bytes() {
+            return bytes;
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7f) != 0) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    private final long memoryBudget;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread indexer;
+
+    private volatile MutableSegment active = new MutableSegment();
+    private volatile List<SealedSegment> sealed = Collections.emptyList();    // oldest first, copy-on-write
+    private volatile long evicted;
+
+    /**
+     * @param memoryBudget approximate bytes of messages and postings to keep
+     */
+    SearchIndex(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        this.indexer = new Thread(this::run, "search-index");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+
+    /**
+     * Queues a message for indexing without blocking, or drops it if the queue is full
+     *
+     * @param id message id, increasing
+     * @param user sender
+     * @param text message text
+     */
+    void add(long id, String user, String text) {
+        Pending pending = new Pending(id, user, text);
+        long bytes = pending.bytes();
+        if (this.queuedBytes.addAndGet(bytes) > this.memoryBudget / QUEUE_SHARE) {
+            this.queuedBytes.addAndGet(-bytes);
+            this.dropped.increment();
+            return;
+        }
+        this.queue.offer(pending);
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, SEGMENT_SIZE);
+
+                for (Pending pending : batch) {
+                    this.index(pending);
+                    this.queuedBytes.addAndGet(-pending.bytes());
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException closed) {
+            // index closed
+        }
+    }
+
+    private void index(Pending pending) {
+        Set<String> terms = tokenize(pending.text);
+        terms.add(FROM + UserTable.fold(pending.user));
+
+        MutableSegment segment = this.active;
+        segment.add(pending.id, pending.user, pending.text, terms);
+
+        if (segment.isFull()) {
+            this.seal(segment);
+            this.merge();
+            this.evict();
+        }
+    }
+
+    private void seal(MutableSegment segment) {
+        SealedSegment sealedSegment;
+        synchronized (segment) {
+            sealedSegment = new SealedSegment(segment.ids, segment.users, segment.texts, segment.size, new TreeMap<>(this.lists(segment)));
+        }
+
+        // publish the sealed copy before readers lose the mutable one
+        List<SealedSegment> next = new ArrayList<>(this.sealed);
+        next.add(sealedSegment);
+        this.sealed = next;
+        this.active = new MutableSegment();
+    }
+
+    private Map<String, int[]> lists(MutableSegment segment) {
+        Map<String, int[]> lists = new HashMap<>();
+        for (String term : segment.postings.keySet()) {
+            lists.put(term, segment.postings(term));
+        }
+        return lists;
+    }
+
+    /**
+     * Merges the smallest pair of neighbouring segments while there are too many
+     */
+    private void merge() {
+        while (this.sealed.size() > MAX_SEGMENTS) {
+            List<SealedSegment> segments = this.sealed;
+            int smallest = 0;
+            for (int i = 1; i < segments.size() - 1; i++) {
+                if (segments.get(i).size + segments.get(i + 1).size < segments.get(smallest).size + segments.get(smallest + 1).size) {
+                    smallest = i;
+                }
+            }
+
+            SealedSegment older = segments.get(smallest);
+            SealedSegment newer = segments.get(smallest + 1);
+            int size = older.size + newer.size;
+            long []ids = new long[size];
+            String []users = new String[size];
+            String []texts = new String[size];
+            System.arraycopy(older.ids, 0, ids, 0, older.size);
+            System.arraycopy(newer.ids, 0, ids, older.size, newer.size);
+            System.arraycopy(older.users, 0, users, 0, older.size);
+            System.arraycopy(newer.users, 0, users, older.size, newer.size);
+            System.arraycopy(older.texts, 0, texts, 0, older.size);
+            System.arraycopy(newer.texts, 0, texts, older.size, newer.size);
+
+            // newer doc numbers shift past the older segment's
+            SortedMap<String, int[]> lists = new TreeMap<>();
+            for (String term : older.terms) {
+                lists.put(term, older.postings(term));
+            }
+            for (String term : newer.terms) {
+                int []shifted = newer.postings(term);
+                for (int i = 0; i < shifted.length; i++) {
+                    shifted[i] += older.size;
+                }
+                int []existing = lists.get(term);
+                if (existing == null) {
+                    lists.put(term, shifted);
+                } else {
+                    int []joined = Arrays.copyOf(existing, existing.length + shifted.length);
+                    System.arraycopy(shifted, 0, joined, existing.length, shifted.length);
+                    lists.put(term, joined);
+                }
+            }
+
+            List<SealedSegment> next = new ArrayList<>(segments);
+            next.set(smallest, new SealedSegment(ids, users, texts, size, lists));
+            next.remove(smallest + 1);
+            this.sealed = next;
+        }
+    }
+
+    /**
+     * Drops the oldest segments while over the memory budget
+     */
+    private void evict() {
+        List<SealedSegment> segments = this.sealed;
+        long total = this.active.bytes() + this.queuedBytes.get();
+        for (SealedSegment segment : segments) {
+            total += segment.bytes();
+        }
+
+        int drop = 0;
+        while (total > this.memoryBudget && drop < segments.size()) {
+            total -= segments.get(drop).bytes();
+            this.evicted += segments.get(drop).size;
+            drop++;
+        }
+        if (drop > 0) this.sealed = new ArrayList<>(segments.subList(drop, segments.size()));
+    }
+
+    /**
+     * Finds the newest messages containing every term
+     *
+     * @param query words to match, plus optional from:user
+     * @param limit most hits to return
+     * @return hits, newest first
+     */
+    List<Hit> search(String query, int limit) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            String folded = UserTable.fold(word);
+            if (folded.startsWith(FROM) && folded.length() > FROM.length()) {
+                terms.add(folded);
+            } else {
+                terms.addAll(tokenize(word));
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        if (terms.isEmpty()) return hits;
+
+        // newest segment first; a segment being sealed may show up twice, so skip ids already found
+        MutableSegment current = this.active;
+        List<Segment> segments = new ArrayList<>(this.sealed);
+        segments.add(current);
+        Set<Long> found = new HashSet<>();
+        for (int s = segments.size() - 1; s >= 0 && hits.size() < limit; s--) {
+            Segment segment = segments.get(s);
+            int []docs = intersect(segment, terms);
+            for (int i = docs.length - 1; i >= 0 && hits.size() < limit; i--) {
+                int doc = docs[i];
+                if (!found.add(segment.ids[doc])) continue;
+                hits.add(new Hit(segment.ids[doc], segment.users[doc], segment.texts[doc]));
+            }
+        }
+        hits.sort((a, b) -> Long.compare(b.id, a.id));
+        return hits;
+    }
+
+    private static int []intersect(Segment segment, Set<String> terms) {
+        int []result = null;
+        for (String term : terms) {
+            int []docs = segment.postings(term);
+            if (docs == null) return new int[0];
+            if (result == null) {
+                result = docs;
+                continue;
+            }
+
+            int count = 0;
+            for (int i = 0, j = 0; i < result.length && j < docs.length; ) {
+                if (result[i] < docs[j]) i++;
+                else if (result[i] > docs[j]) j++;
+                else {
+                    result[count++] = result[i];
+                    i++;
+                    j++;
+                }
+            }
+            result = Arrays.copyOf(result, count);
+            if (count == 0) break;
+        }
+        return result;
+    }
+
+    /**
+     * Splits text into lowercase words of letters and digits
+     *
+     * @param text text to split
+     * @return distinct words
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String term = UserTable.fold(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                terms.add(term);
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * @return index size and memory use
+     */
+    String stats() {
+        List<SealedSegment> segments = this.sealed;
+        long bytes = this.active.bytes() + this.queuedBytes.get();
+        long messages = this.active.size;
+        for (SealedSegment segment : segments) {
+            bytes += segment.bytes();
+            messages += segment.size;
+        }
+        return messages + " messages in " + (segments.size() + 1) + " segments, ~" + (bytes / 1024) + " KiB of "
+                + (this.memoryBudget / 1024) + " KiB, " + this.evicted + " evicted, "
+                + this.queue.size() + " queued, " + this.dropped.sum() + " dropped";
+    }
+
+    @Override
+    public void close() {
+        this.indexer.interrupt();
+    }
+}
@@ -0,0 +1,226 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * chatroom
+ *
+ * Numbers chat messages per room and delivers each room's messages in that order.
+ * Senders take the next id with one atomic increment and drop the message into the room's ring.
+ * Whichever sender finds the room idle becomes its single writer and delivers
+ * every message that is ready, in order, so all recipients see the same sequence
+ * without a global lock.  The ring doubles as recent history for replays.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Sequencer
+{
+    /**
+     * Returned by {@link Room#publish(Message)} when delivery is too far behind to take the message
+     */
+    static final long BACKED_UP = -1;
+
+    // how long a sender waits for a full room before giving up
+    private static final long FULL_WAIT_MILLIS = 1000;
+
+    /**
+     * A chat message with its place in a room
+     */
+    static final class Message {
+        final String room;
+        final int senderUserId;
+        final int senderClientId;
+        final String sender;
+        final int recipientUserId;
+        final String text;
+        long sequence;
+
+        Message(String room, int senderUserId, int senderClientId, String sender, int recipientUserId, String text) {
+            this.room = room;
+            this.senderUserId = senderUserId;
+            this.senderClientId = senderClientId;
+            this.sender = sender;
+            this.recipientUserId = recipientUserId;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Writes one message to its recipients.  Called by one thread at a time per room.
+     */
+    interface Delivery {
+        void deliver(Message message);
+    }
+
+    /**
+     * Messages of one room
+     */
+    final class Room {
+        private final String name;
+        private final AtomicReferenceArray<Message> ring;
+        private final int mask;
+        private final AtomicLong sequence;
+        private final AtomicBoolean draining = new AtomicBoolean(false);
+        private volatile long delivered;
+
+        private Room(String name, int capacity, long start) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.name = name;
+            this.ring = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+            this.sequence = new AtomicLong(start);
+            this.delivered = start;
+        }
+
+        String name() {
+            return this.name;
+        }
+
+        /**
+         * @return id of the newest message, 0 if none
+         */
+        long latest() {
+            return this.sequence.get();
+        }
+
+        /**
+         * @return id of the newest message written to its recipients, which may trail {@link #latest()}
+         */
+        long delivered() {
+            return this.delivered;
+        }
+
+        /**
+         * Numbers a message and delivers it once every earlier message has been delivered.
+         * If the room is a whole ring behind, waits a little for delivery to catch up.
+         *
+         * @param message message to send
+         * @return id given to the message, or {@link #BACKED_UP} if the room stayed full
+         */
+        long publish(Message message) {
+            // claim an id only once its slot is free, so giving up leaves no hole in the sequence
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FULL_WAIT_MILLIS);
+            int waits = 0;
+            long id;
+            while (true) {
+                long latest = this.sequence.get();
+                if (latest - this.delivered < this.ring.length()) {
+                    if (this.sequence.compareAndSet(latest, latest + 1)) {
+                        id = latest + 1;
+                        break;
+                    }
+                    continue;
+                }
+
+                // a slow recipient is holding up delivery, so sleep instead of spinning
+                if (System.nanoTime() > deadline) return BACKED_UP;
+                if (++waits < 100) Thread.onSpinWait();
+                else LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(waits - 99, 10)));
+            }
+            message.sequence = id;
+            this.ring.set((int) (id & this.mask), message);
+
+            this.drain();
+            return id;
+        }
+
+        private void drain() {
+            while (this.draining.compareAndSet(false, true)) {
+                try {
+                    Message message;
+                    while ((message = this.ready()) != null) {
+                        try {
+                            delivery.deliver(message);
+                        } finally {
+                            this.delivered = message.sequence;
+                        }
+                    }
+                } finally {
+                    this.draining.set(false);
+                }
+
+                // a message stored while we were letting go would otherwise wait for the next sender
+                if (this.ready() == null) return;
+            }
+        }
+
+        private Message ready() {
+            long next = this.delivered + 1;
+            Message message = this.ring.get((int) (next & this.mask));
+            return message != null && message.sequence == next ? message : null;
+        }
+
+        /**
+         * Gets delivered messages still held in recent history
+         *
+         * @param from first id wanted
+         * @param to last id wanted
+         * @return messages in order, possibly starting after from if older ones are gone
+         */
+        List<Message> range(long from, long to) {
+            long last = Math.min(to, this.delivered);
+            long first = Math.max(Math.max(from, 1), last - this.ring.length() + 1);
+
+            List<Message> messages = new ArrayList<>();
+            for (long id = first; id <= last; id++) {
+                Message message = this.ring.get((int) (id & this.mask));
+                if (message != null && message.sequence == id) messages.add(message);
+            }
+            return messages;
+        }
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Delivery delivery;
+
+    Sequencer(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    /**
+     * Gets a room, creating it if needed
+     *
+     * @param name room name
+     * @param capacity messages kept for ordering and replay
+     * @return room
+     */
+    Room room(String name, int capacity) {
+        return this.rooms.computeIfAbsent(name, roomName -> new Room(roomName, capacity, 0));
+    }
+
+    /**
+     * Recreates a room that continues numbering after a restart
+     *
+     * @param name room name
+     * @param capacity messages kept for ordering and replay
+     * @param latest id of the newest message before the restart
+     */
+    void restore(String name, int capacity, long latest) {
+        this.rooms.putIfAbsent(name, new Room(name, capacity, latest));
+    }
+
+    /**
+     * @return every room that has been used
+     */
+    Collection<Room> rooms() {
+        return this.rooms.values();
+    }
+
+    /**
+     * @param name room name
+     * @return room, or null if nothing was ever sent there
+     */
+    Room find(String name) {
+        return this.rooms.get(name);
+    }
+}
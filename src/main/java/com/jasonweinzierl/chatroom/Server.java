@@ -1,5 +1,8 @@
 package com.jasonweinzierl.chatroom;
 
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.*;
@@ -7,10 +10,16 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
 
 /**
  * chatroom
@@ -23,18 +32,64 @@ public class Server implements AutoCloseable
     private PrintWriter serverOut;
 
     private ServerSocket serverSocket;
-    private final Map<Integer, Socket> clients = new HashMap<>();         // socket mapped to an id
-    private final Map<String, Integer> activeLogins = new HashMap<>();    // id mapped to username
+    private final IntMap<ClientHandler> clients = new IntMap<>();         // client mapped to an id, guarded by itself
+    private final UserTable users = new UserTable();                      // username interned to a user id
+    private final SessionTable<ClientHandler> activeLogins = new SessionTable<>();  // client mapped to user id
     private int counter;
 
     private final int maxClients;
 
-    private final Map<String, String> logins = new HashMap<>();           // all available logins, active or not
+    // all available logins, active or not.  Read without locking; writers lock it to keep logins.txt in step
+    private final Map<String, String> logins = new ConcurrentHashMap<>();
+
+    // replaced once calibrated, stored hashes are only upgraded after that
+    private volatile PasswordAuthentication auther = new PasswordAuthentication(PasswordAuthentication.SHA256_ID, PasswordAuthentication.DEFAULT_STRENGTH);
+    private volatile boolean calibrated;
+    private boolean loginsDirty;    // logins has rehashed tokens not yet in logins.txt, guarded by logins
+
+    // CPU time one password hash may take, -Dchatroom.loginBudgetMillis to change
+    private static final long LOGIN_BUDGET_MILLIS = Long.getLong("chatroom.loginBudgetMillis", 50);
+
+    private static final long SESSION_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private final Map<String, Snapshot.Session> sessions = new ConcurrentHashMap<>();   // resumable logins by token hash
+    private final Map<String, String> userSessions = new ConcurrentHashMap<>();             // each user's live session token hash
+    private final SecureRandom random = new SecureRandom();
+
+    private static final long SNAPSHOT_PERIOD_SECONDS = 60;
+    private static final long RECONNECT_MIN_MILLIS = 500;
+
+    // window clients are told to reconnect over when the server closes, -Dchatroom.drainSpreadMillis to change
+    private static final long DRAIN_SPREAD_MILLIS = Long.getLong("chatroom.drainSpreadMillis", 10000);
+    private volatile boolean drained;
+    private final Path snapshotFile;
+    private final ScheduledExecutorService snapshotter;
 
-    private PasswordAuthentication auther;
+    private static final long PRESENCE_WINDOW_MILLIS = 250;
+    private static final int WHO_PAGE_SIZE = 20;
+    private final Presence presence;
 
     private final PropertyChangeSupport boundProperties = new PropertyChangeSupport(this);
 
+    private static final int EVENT_RING_SIZE = 4096;
+    private final EventBus events;
+
+    private static final String ALL_ROOM = "all";
+    private static final int ROOM_HISTORY = 1024;       // messages kept per room for replay
+    private static final int MAILBOX_HISTORY = 64;      // direct messages kept per user for replay
+    private final Sequencer sequencer;
+
+    private static final long SEARCH_MEMORY_BUDGET = 32L << 20;
+    private static final int SEARCH_RESULTS = 20;
+    private final SearchIndex searchIndex;
+
+    // TLS handshakes run here, off the chat threads, when -Dchatroom.tls.keyStore is set
+    private static final int HANDSHAKE_BACKLOG = 64;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private final ExecutorService handshakes;
+    private final ScheduledThreadPoolExecutor handshakeDeadlines;     // closes sockets whose handshake runs too long
+
+    private Recording recording;
+
     public Server() {
         // default just print to console
         this(System.out);
@@ -52,13 +107,112 @@ public class Server implements AutoCloseable
         this.counter = 0;
         this.maxClients = 3;
 
-        this.auther = new PasswordAuthentication();
+        this.presence = new Presence(PRESENCE_WINDOW_MILLIS, this::deliverPresence);
 
-        this.loadLogins();
+        this.events = new EventBus(EVENT_RING_SIZE, this.serverOut);
+
+        this.sequencer = new Sequencer(this::deliver);
+
+        this.searchIndex = new SearchIndex(SEARCH_MEMORY_BUDGET);
+
+        if (Tls.serverEnabled()) {
+            // bounded both ways, so a flood of handshakes can't starve chat of CPU
+            int threads = Runtime.getRuntime().availableProcessors();
+            this.handshakes = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(HANDSHAKE_BACKLOG), runnable -> {
+                Thread thread = new Thread(runnable, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.handshakeDeadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "tls-deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.handshakeDeadlines.setRemoveOnCancelPolicy(true);
+            serverOut.println("TLS enabled with " + threads + " handshake threads.");
+        } else {
+            this.handshakes = null;
+            this.handshakeDeadlines = null;
+        }
+
+        // -Dchatroom.snapshot=file picks where state is kept across restarts
+        this.snapshotFile = Paths.get(System.getProperty("chatroom.snapshot", "snapshot.bin"));
+        this.restore();
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.snapshotter.scheduleWithFixedDelay(this::writeSnapshot, SNAPSHOT_PERIOD_SECONDS, SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+        // same login cost on any machine; stored hashes catch up as users log in.
+        // measuring takes seconds, so it happens in the background and is kept in the snapshot.
+        // a saved strength is checked again once the restart's login wave has passed, so it can't skew the measurement
+        if (this.calibrated) {
+            serverOut.println("Hashing passwords with " + auther.getStrength() + " iterations of " + auther.getAlgorithm()
+                    + " for a " + LOGIN_BUDGET_MILLIS + " ms budget, as last calibrated.");
+            this.snapshotter.schedule(this::calibrate, SNAPSHOT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        } else {
+            this.snapshotter.execute(this::calibrate);
+        }
+
+        // -Dchatroom.jfr=file.jfr records from startup
+        String recordingFile = System.getProperty("chatroom.jfr");
+        if (recordingFile != null) {
+            try {
+                this.startRecording(Paths.get(recordingFile));
+            } catch (IOException ioException) {
+                serverOut.println("Couldn't start flight recording: " + ioException.getMessage());
+            }
+        }
 
         this.serverOut.println("Server ready to listen...");
     }
 
+    /**
+     * Measures the strength that fits the login budget on this machine and hashes with it from now on,
+     * unless the strength already in use is within timing noise of it
+     */
+    private void calibrate() {
+        PasswordAuthentication measured = PasswordAuthentication.calibrate(LOGIN_BUDGET_MILLIS);
+        PasswordAuthentication current = this.auther;
+        if (this.calibrated && current.isCloseTo(measured)) {
+            serverOut.println("Hashing strength " + current.getStrength() + " still fits the " + LOGIN_BUDGET_MILLIS
+                    + " ms budget, measured " + measured.getStrength() + '.');
+            return;
+        }
+
+        this.auther = measured;
+        this.calibrated = true;
+        serverOut.println("Hashing passwords with " + measured.getStrength() + " iterations of " + measured.getAlgorithm()
+                + " for a " + LOGIN_BUDGET_MILLIS + " ms budget.");
+    }
+
+    /**
+     * @return what a calibrated strength depends on besides the budget, so a snapshot moved elsewhere is measured again
+     */
+    private static String machine() {
+        return Runtime.getRuntime().availableProcessors() + " cpus " + System.getProperty("os.arch")
+                + ' ' + System.getProperty("java.vm.name") + ' ' + System.getProperty("java.vm.version");
+    }
+
+    /**
+     * Adds a stored login and interns its name.
+     * Names are matched case-insensitively, so of two logins differing only in case the first one owns the name;
+     * the other stays in logins.txt but can't log in until it is renamed.
+     *
+     * @param username name as stored
+     * @param authToken stored password hash
+     */
+    private void addLogin(String username, String authToken) {
+        this.logins.put(username, authToken);
+        String owner = this.users.name(this.users.intern(username));
+        if (!owner.equals(username)) {
+            serverOut.println("Login " + username + " collides with " + owner + ", only " + owner + " can log in.");
+        }
+    }
+
     private void loadLogins() {
         serverOut.println("Opening login information...");
         File f = new File("logins.txt");
@@ -67,7 +221,7 @@ public class Server implements AutoCloseable
             in.findAll("\\w+:\\S+").forEach(matchResult -> {
                 // split around colon and store
                 String []login = matchResult.group(0).split(":");
-                this.logins.put(login[0], login[1]);
+                this.addLogin(login[0], login[1]);
             });
         } catch (FileNotFoundException e) {
             serverOut.println("No login file.");
@@ -82,6 +236,245 @@ public class Server implements AutoCloseable
         serverOut.println(this.logins.size() + " logins loaded.");
     }
 
+    /**
+     * Restores state from the last snapshot.
+     * Credentials come from logins.txt instead if it changed since the snapshot was written.
+     */
+    private void restore() {
+        Snapshot snapshot;
+        try {
+            snapshot = Snapshot.read(this.snapshotFile);
+        } catch (NoSuchFileException noSnapshot) {
+            this.loadLogins();
+            return;
+        } catch (IOException ioException) {
+            serverOut.println("Couldn't read snapshot: " + ioException.getMessage());
+            this.loadLogins();
+            return;
+        }
+
+        // start from the last calibration if it was for this budget on this machine
+        if (snapshot.hashBudgetMillis == LOGIN_BUDGET_MILLIS && snapshot.hashStrength > 0 && machine().equals(snapshot.hashMachine)) {
+            this.auther = new PasswordAuthentication(PasswordAuthentication.SHA256_ID, snapshot.hashStrength);
+            this.calibrated = true;
+        }
+
+        File f = new File("logins.txt");
+        if (f.length() == snapshot.loginsSize && f.lastModified() == snapshot.loginsModified) {
+            snapshot.credentials.forEach(this::addLogin);
+            serverOut.println(this.logins.size() + " logins restored from snapshot.");
+        } else {
+            serverOut.println("Login file changed since snapshot.");
+            this.loadLogins();
+        }
+
+        long now = System.currentTimeMillis();
+        for (Snapshot.Session session : snapshot.sessions) {
+            if (session.expiresAt <= now || !this.logins.containsKey(session.username)) continue;
+
+            // one session per user, the one that lasts longest
+            String previous = this.userSessions.get(session.username);
+            Snapshot.Session kept = previous == null ? null : this.sessions.get(previous);
+            if (kept != null && kept.expiresAt >= session.expiresAt) continue;
+            if (previous != null) this.sessions.remove(previous);
+            this.sessions.put(session.tokenHash, session);
+            this.userSessions.put(session.username, session.tokenHash);
+        }
+
+        // keep numbering rooms where they left off, so clients can still spot gaps
+        snapshot.rooms.forEach((room, latest) -> this.sequencer.restore(room, room.equals(ALL_ROOM) ? ROOM_HISTORY : MAILBOX_HISTORY, latest));
+        serverOut.println(this.sessions.size() + " sessions and " + snapshot.rooms.size() + " rooms restored.");
+    }
+
+    /**
+     * Replaces a stored password hash with one at the current algorithm and strength.
+     * The login file is rewritten with the next snapshot, so a wave of logins rewrites it once.
+     *
+     * @param username user whose password was just verified
+     * @param password the verified password
+     */
+    private void rehash(String username, String password) {
+        String authToken = auther.hash(password.toCharArray());
+
+        synchronized (this.logins) {
+            this.logins.put(username, authToken);
+            this.loginsDirty = true;
+        }
+        serverOut.println("Rehashed password of " + username + ".");
+    }
+
+    /**
+     * Rewrites the login file from the logins map if any password was rehashed since it was written.
+     * Callers hold the logins lock.
+     */
+    private void saveLogins() {
+        if (!this.loginsDirty) return;
+
+        List<String> lines = new ArrayList<>(this.logins.size());
+        this.logins.forEach((loginUsername, loginAuthToken) -> lines.add(loginUsername + ':' + loginAuthToken));
+        try {
+            // written beside the old file and moved over it, so a crash can't lose logins
+            Path file = Paths.get("logins.txt");
+            Path temp = Paths.get("logins.txt.tmp");
+            Files.write(temp, lines, Charset.forName("UTF-8"));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioException) {
+            serverOut.println("Couldn't rewrite login file: " + ioException.getMessage());
+            return;
+        }
+        this.loginsDirty = false;
+        serverOut.println("Saved " + lines.size() + " logins with rehashed passwords.");
+    }
+
+    /**
+     * Saves credentials, resumable sessions and room ids for the next server to start from
+     */
+    private synchronized void writeSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.writtenAt = System.currentTimeMillis();
+
+        if (this.calibrated) {
+            snapshot.hashBudgetMillis = LOGIN_BUDGET_MILLIS;
+            snapshot.hashStrength = this.auther.getStrength();
+            snapshot.hashMachine = machine();
+        }
+
+        // logins.txt and the map change together under this lock
+        File f = new File("logins.txt");
+        synchronized (this.logins) {
+            this.saveLogins();
+            snapshot.loginsSize = f.length();
+            snapshot.loginsModified = f.lastModified();
+            snapshot.credentials.putAll(this.logins);
+        }
+
+        for (Snapshot.Session session : this.sessions.values()) {
+            if (session.expiresAt <= snapshot.writtenAt) {
+                this.sessions.remove(session.tokenHash, session);
+                this.userSessions.remove(session.username, session.tokenHash);
+            } else {
+                snapshot.sessions.add(session);
+            }
+        }
+
+        for (Sequencer.Room room : this.sequencer.rooms()) {
+            snapshot.rooms.put(room.name(), room.latest());
+        }
+
+        try {
+            snapshot.write(this.snapshotFile);
+        } catch (IOException ioException) {
+            serverOut.println("Couldn't write snapshot: " + ioException.getMessage());
+        }
+    }
+
+    /**
+     * Sends a coalesced presence delta to every logged in client that wants one
+     *
+     * @param delta users that logged in and out during the last window
+     */
+    private void deliverPresence(String delta) {
+        for (int loginUserId : activeLogins.active()) {
+            ClientHandler recipient = activeLogins.get(loginUserId);
+            if (recipient == null || !recipient.presenceUpdates) continue;
+            try {
+                recipient.write(delta);
+            } catch (IOException ioException) {
+                serverOut.println("Client " + recipient.id + " was unresponsive: " + ioException);
+            }
+        }
+    }
+
+    /**
+     * @param username user receiving direct messages
+     * @return name of the user's direct message room
+     */
+    private static String mailbox(String username) {
+        return '@' + UserTable.fold(username);
+    }
+
+    /**
+     * Formats a message as one recipient sees it, prefixed with its room and id
+     *
+     * @param message sequenced message
+     * @param viewerUserId user the line is for
+     * @return line to send
+     */
+    private static String format(Sequencer.Message message, int viewerUserId) {
+        String prefix = "[" + message.room + '#' + message.sequence + "] ";
+        if (message.recipientUserId != UserTable.UNKNOWN) return prefix + message.sender + "(to you): " + message.text;
+        if (message.senderUserId == viewerUserId) return prefix + "you: " + message.text;
+        return prefix + message.sender + ": " + message.text;
+    }
+
+    /**
+     * Writes a message to its recipients.  The sequencer calls this in id order, one room at a time.
+     *
+     * @param message sequenced message
+     */
+    private void deliver(Sequencer.Message message) {
+        if (message.recipientUserId == UserTable.UNKNOWN) {
+            this.broadcast(message);
+            return;
+        }
+
+        ClientHandler recipient = activeLogins.get(message.recipientUserId);
+        if (recipient == null) return;    // logged out since, can replay later
+        try {
+            recipient.write(format(message, message.recipientUserId));
+            if (events.hasSubscribers()) {
+                events.publish(ChatEvent.delivered(message.senderClientId, message.sender, recipient.username, message.text, 1));
+            }
+        } catch (IOException ioException) {
+            serverOut.println("Client " + recipient.id + " was unresponsive: " + ioException);
+            ClientHandler sender = activeLogins.get(message.senderUserId);
+            if (sender != null) sender.out.println(recipient.username + " was unresponsive.");
+        }
+    }
+
+    /**
+     * Writes a message to every logged in user
+     *
+     * @param message sequenced message
+     */
+    private void broadcast(Sequencer.Message message) {
+        ServerEvents.BroadcastEvent event = new ServerEvents.BroadcastEvent();
+        event.begin();
+        String fromSelf = format(message, message.senderUserId);
+        String fromOther = format(message, UserTable.UNKNOWN);
+        int []recipients = activeLogins.active();
+        long bytes = 0;
+        int failures = 0;
+        for (int loginUserId : recipients) {
+            ClientHandler recipient = activeLogins.get(loginUserId);
+            if (recipient == null) continue;
+            try {
+                // talk to yourself
+                bytes += recipient.write(loginUserId == message.senderUserId ? fromSelf : fromOther);
+            } catch (IOException ioException) {
+                failures++;
+                serverOut.println("Client " + recipient.id + " was unresponsive: " + ioException);
+                ClientHandler sender = activeLogins.get(message.senderUserId);
+                if (sender != null) sender.out.println(recipient.username + " was unresponsive.");
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.sender = message.sender;
+            event.sequence = message.sequence;
+            event.recipients = recipients.length;
+            event.bytes = bytes;
+            event.failures = failures;
+            event.commit();
+        }
+        if (events.hasSubscribers()) {
+            events.publish(ChatEvent.delivered(message.senderClientId, message.sender, null, message.text, recipients.length - failures));
+        }
+
+        // indexed in the background after delivery, in id order
+        searchIndex.add(message.sequence, message.sender, message.text);
+    }
+
     /**
      * Start listening for connections
      *
@@ -103,19 +496,58 @@ public class Server implements AutoCloseable
                     // wait for socket
                     Socket clientSocket = serverSocket.accept();
 
+                    ServerEvents.AcceptEvent acceptEvent = new ServerEvents.AcceptEvent();
+                    acceptEvent.begin();
+
                     // enforce max clients
-                    if (clients.size() + 1 > maxClients) {
-                        clientSocket.getOutputStream().write("Server is full.  Goodbye.".getBytes());
-                        clientSocket.getOutputStream().flush();
+                    int connected;
+                    synchronized (clients) {
+                        connected = clients.size();
+                    }
+                    if (connected + 1 > maxClients) {
+                        // a TLS client can't read plaintext, and a handshake just to say goodbye would spend the pool
+                        if (handshakes == null) {
+                            clientSocket.getOutputStream().write("Server is full.  Goodbye.".getBytes());
+                            clientSocket.getOutputStream().flush();
+                        }
                         clientSocket.close();
+
+                        acceptEvent.end();
+                        if (acceptEvent.shouldCommit()) {
+                            acceptEvent.clientId = -1;
+                            acceptEvent.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+                            acceptEvent.rejected = true;
+                            acceptEvent.commit();
+                        }
                         continue;
                     }
 
-                    // save connected sockets
-                    clients.put(counter, clientSocket);
+                    // save connected clients
+                    ClientHandler handler = new ClientHandler(clientSocket, counter);
+                    synchronized (clients) {
+                        clients.put(counter, handler);
+                    }
 
-                    // start new client thread
-                    new ClientHandler(clientSocket, counter).start();
+                    // start new client thread, after its TLS handshake if any
+                    if (handshakes == null) {
+                        handler.start();
+                    } else {
+                        try {
+                            handshakes.execute(handler::handshake);
+                        } catch (RejectedExecutionException busy) {
+                            handler.forget();
+                            clientSocket.close();
+                            serverOut.println("Too many TLS handshakes waiting, dropped Client " + counter);
+                        }
+                    }
+
+                    acceptEvent.end();
+                    if (acceptEvent.shouldCommit()) {
+                        acceptEvent.clientId = counter;
+                        acceptEvent.remoteAddress = String.valueOf(clientSocket.getRemoteSocketAddress());
+                        acceptEvent.rejected = false;
+                        acceptEvent.commit();
+                    }
 
                     counter++;
                 }
@@ -131,41 +563,155 @@ public class Server implements AutoCloseable
     private class ClientHandler extends Thread implements AutoCloseable {
         private final Socket socket;
         private final int id;
+        private Connection connection;
+        private Tls.Transport tls;
         private PrintWriter out;
-        private BufferedReader in;
 
         private boolean isLoggedIn;
         private String username;
+        private int userId;
+        private volatile boolean presenceUpdates;
+        private volatile String sessionHash;
+
+        private final long connectedAt;
 
         ClientHandler(Socket socket, int id) {
             this.socket = socket;
             this.id = id;
+            this.connectedAt = System.nanoTime();
             this.isLoggedIn = false;
             this.username = null;
+            this.userId = UserTable.UNKNOWN;
+            this.presenceUpdates = true;
+        }
+
+        /**
+         * Runs the TLS handshake on the handshake pool, then starts this client's thread
+         */
+        private void handshake() {
+            // the read timeout only bounds each read, so a peer trickling bytes is cut off by closing the socket
+            ScheduledFuture<?> deadline = handshakeDeadlines.schedule(() -> {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already disconnected
+                }
+            }, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+            try {
+                // a silent peer can't hold a handshake thread forever
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                Tls.Transport transport = Tls.server(socket);
+                transport.handshake();
+                if (!deadline.cancel(false)) throw new IOException("Socket closed");
+                socket.setSoTimeout(0);
+                this.tls = transport;
+            } catch (IOException ioException) {
+                boolean late = !deadline.cancel(false) && !deadline.isCancelled();
+                this.forget();
+                serverOut.println("Client " + id + " failed TLS handshake: "
+                        + (late ? "not done in " + HANDSHAKE_TIMEOUT_MILLIS + " ms" : ioException.getMessage()));
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // already disconnected
+                }
+                return;
+            }
+            this.start();
         }
 
         @Override
         public void run() {
             try {
                 // set input and output
-                out = new PrintWriter(socket.getOutputStream(), true);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                connection = this.tls == null ? new Connection(socket) : new Connection(socket, tls.in(), tls.out());
+                out = new PrintWriter(connection.writer(), true);
 
                 // greet new client
                 out.println("Welcome to the server.  You are Client " + id);
                 out.println("Type /help for command list.");
-                serverOut.println("New Client " + id + " has connected from " + socket.getRemoteSocketAddress());
+                serverOut.println("New Client " + id + " has connected from " + socket.getRemoteSocketAddress()
+                        + (this.tls == null ? "" : " over " + tls.describe()));
 
                 // handle data from socket
                 this.handleData();
 
                 // no more data, socket and io closed
-                clients.remove(id);
+                this.forget();
                 serverOut.println("Client " + id + " has disconnected.");
+                this.recordDisconnect(false, "closed");
             } catch (IOException ioException) {
-                clients.remove(id);
+                this.forget();
                 serverOut.println("Client " + id + " abruptly closed: " + ioException.getMessage());
+                this.recordDisconnect(true, ioException.getMessage());
+            } finally {
+                if (connection != null) {
+                    serverOut.println("Client " + id + ' ' + connection.stats());
+                    // a client leaving with /exit never reads to the end of the stream
+                    connection.stopReading();
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                        // already disconnected
+                    }
+                }
+            }
+        }
+
+        private void forget() {
+            synchronized (clients) {
+                clients.remove(id);
+            }
+            // a dropped socket can't log out, so release its session here
+            if (this.isLoggedIn && activeLogins.get(this.userId) == this) {
+                activeLogins.unbind(this.userId, this);
+                presence.left(this.username, this.id);
+            }
+        }
+
+        private void recordDisconnect(boolean abrupt, String reason) {
+            if (events.hasSubscribers()) events.publish(ChatEvent.disconnect(this.id, this.username));
+
+            ServerEvents.DisconnectEvent event = new ServerEvents.DisconnectEvent();
+            if (event.shouldCommit()) {
+                event.clientId = this.id;
+                event.username = this.username;
+                event.abrupt = abrupt;
+                event.reason = reason;
+                event.connectedFor = System.nanoTime() - this.connectedAt;
+                if (this.connection != null) {
+                    event.compressed = this.connection.isCompressed();
+                    event.rawBytesOut = this.connection.rawBytesOut();
+                    event.wireBytesOut = this.connection.wireBytesOut();
+                    event.rawBytesIn = this.connection.rawBytesIn();
+                    event.wireBytesIn = this.connection.wireBytesIn();
+                }
+                event.commit();
+            }
+        }
+
+        /**
+         * Writes text to this client's socket from any thread, recording a JFR event if the write is slow
+         *
+         * @param text text to write
+         * @return number of bytes written
+         * @throws IOException Thrown when the socket fails
+         */
+        private int write(String text) throws IOException {
+            ServerEvents.SlowWriteEvent event = new ServerEvents.SlowWriteEvent();
+            event.begin();
+
+            int bytes = this.connection.writeLine(text);
+
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientId = this.id;
+                event.recipient = this.username;
+                event.bytes = bytes;
+                event.commit();
             }
+            return bytes;
         }
 
         /**
@@ -176,7 +722,7 @@ public class Server implements AutoCloseable
         private void handleData() throws IOException {
             String inputLine;
             // read input until socket closes or client causes return
-            while ((inputLine = in.readLine()) != null) {
+            while ((inputLine = connection.readLine()) != null) {
                 // send chat if input is not a command
                 if (!inputLine.startsWith("/")) {
                     this.send("all " + inputLine);
@@ -185,7 +731,7 @@ public class Server implements AutoCloseable
 
                 // split command and arguments
                 String command = inputLine.indexOf(' ') == -1 ? inputLine : inputLine.substring(0, inputLine.indexOf(' '));
-                String data = inputLine.substring(inputLine.indexOf(' ') + 1);
+                String data = inputLine.indexOf(' ') == -1 ? "" : inputLine.substring(inputLine.indexOf(' ') + 1);
 
                 // execute commands
                 switch(command) {
@@ -198,6 +744,9 @@ public class Server implements AutoCloseable
                     case "/login":
                         this.login(data);
                         break;
+                    case "/resume":
+                        this.resume(data);
+                        break;
                     case "/logout":
                         if (!this.isLoggedIn) {
                             out.println("You are not logged in.");
@@ -212,8 +761,25 @@ public class Server implements AutoCloseable
                     case "/say":
                         this.send(data);
                         break;
+                    case "/replay":
+                        this.replay(data);
+                        break;
+                    case "/search":
+                        this.search(data);
+                        break;
                     case "/who":
-                        this.who();
+                        this.who(data);
+                        break;
+                    case "/presence":
+                        this.presence(data);
+                        break;
+                    case Compression.REQUEST:
+                        this.compress();
+                        break;
+                    case "/stats":
+                        out.println("Client " + id + ": " + connection.stats());
+                        out.println("Buffer pool: " + BufferPool.stats());
+                        if (tls != null) out.println("TLS: " + tls.describe() + ", " + Tls.stats());
                         break;
                     case "/whoami":
                         this.whoami();
@@ -234,8 +800,8 @@ public class Server implements AutoCloseable
         @Override
         public void close() throws IOException {
             if (this.out != null) this.out.close();
-            if (this.in != null) this.in.close();
-            if (this.socket != null) this.socket.close();
+            if (this.connection != null) this.connection.close();
+            else if (this.socket != null) this.socket.close();
             serverOut.println("Client " + id + " exit.");
         }
 
@@ -263,40 +829,214 @@ public class Server implements AutoCloseable
             String password = args[1];
 
             // can't use active login
-            if (activeLogins.containsKey(username)) {
+            if (activeLogins.get(users.find(username)) != null) {
                 out.println(username + " is already logged in.");
                 serverOut.println("Client " + id + " tried to log in to active login " + username);
                 return;
             }
 
-            // validate username
-            if (!logins.containsKey(username)) {
+            // validate username, in any case, against the login that owns the name
+            int knownUserId = users.find(username);
+            String authToken = knownUserId == UserTable.UNKNOWN ? null : logins.get(users.name(knownUserId));
+            if (authToken == null) {
                 out.println("Username or password incorrect.");
                 serverOut.println(username + " was provided as incorrect username on Client " + id);
                 return;
             }
+            username = users.name(knownUserId);
 
             // validate password
-            if (!auther.verify(password.toCharArray(), logins.get(username))) {
+            ServerEvents.LoginEvent event = new ServerEvents.LoginEvent();
+            event.begin();
+            long hashStart = System.nanoTime();
+            boolean verified = auther.verify(password.toCharArray(), authToken);
+            long hashDuration = System.nanoTime() - hashStart;
+            boolean rehash = verified && calibrated && auther.needsRehash(authToken);
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientId = this.id;
+                event.username = username;
+                event.newUser = false;
+                event.success = verified;
+                event.hashDuration = hashDuration;
+                event.rehash = rehash;
+                event.commit();
+            }
+            if (!verified) {
                 out.println("username or Password incorrect.");
                 serverOut.println("Failed login attempt to " + username + " on Client " + id);
                 return;
             }
 
+            // claim session, unless someone else logged in while hashing
+            int loginUserId = knownUserId;
+            if (!activeLogins.bind(loginUserId, this)) {
+                out.println(username + " is already logged in.");
+                serverOut.println("Client " + id + " tried to log in to active login " + username);
+                return;
+            }
             this.isLoggedIn = true;
             this.username = username;
-            activeLogins.put(this.username, this.id);
+            this.userId = loginUserId;
 
             // notify
             serverOut.println("Logged in user " + this.username + " on Client " + id);
-            activeLogins.forEach((loginUsername, loginClientId) -> {
-                try {
-                    clients.get(loginClientId).getOutputStream().write((this.username + " logged in.").getBytes());
-                    clients.get(loginClientId).getOutputStream().flush();
-                } catch (IOException ioException) {
-                    serverOut.println("Client " + loginClientId + " was unresponsive: " + ioException);
+            presence.joined(this.username, this.id, String.valueOf(socket.getRemoteSocketAddress()), false);
+            if (events.hasSubscribers()) events.publish(ChatEvent.login(this.id, this.username));
+            this.issueSession();
+            this.announceRooms();
+
+            // only now is the password known, so upgrade the stored hash after the user is in
+            if (rehash) rehash(this.username, password);
+        }
+
+        /**
+         * Logs in with a session token instead of a password, so reconnecting costs no password hash
+         *
+         * @param data session token
+         */
+        private void resume(String data) {
+            if (this.isLoggedIn) {
+                out.println("Already logged in.");
+                serverOut.println("Client " + id + " sent /resume while logged in.");
+                return;
+            }
+
+            String tokenHash = Snapshot.hashToken(data);
+            Snapshot.Session session = sessions.get(tokenHash);
+            if (session == null || session.expiresAt <= System.currentTimeMillis()) {
+                if (session != null) {
+                    sessions.remove(tokenHash, session);
+                    userSessions.remove(session.username, tokenHash);
                 }
-            });
+                out.println("Session expired.  Please /login again.");
+                serverOut.println("Client " + id + " tried to resume an unknown or expired session.");
+                return;
+            }
+
+            // the old connection may not have noticed it dropped yet, so keep the token for another try
+            int loginUserId = users.intern(session.username);
+            if (!activeLogins.bind(loginUserId, this)) {
+                out.println(session.username + " is already logged in.  Try /resume again shortly.");
+                serverOut.println("Client " + id + " tried to resume active login " + session.username);
+                return;
+            }
+
+            // tokens are single use, a new one replaces it below
+            if (!sessions.remove(tokenHash, session)) {
+                activeLogins.unbind(loginUserId, this);
+                out.println("Session expired.  Please /login again.");
+                serverOut.println("Client " + id + " lost a race to resume " + session.username);
+                return;
+            }
+            this.isLoggedIn = true;
+            this.username = session.username;
+            this.userId = loginUserId;
+            this.presenceUpdates = session.presenceUpdates;
+
+            // notify
+            serverOut.println("Resumed user " + this.username + " on Client " + id);
+            presence.joined(this.username, this.id, String.valueOf(socket.getRemoteSocketAddress()), false);
+            if (events.hasSubscribers()) events.publish(ChatEvent.login(this.id, this.username));
+            this.issueSession();
+            this.announceRooms();
+        }
+
+        /**
+         * Gives the client a token to resume this login with after a disconnect or server restart,
+         * revoking any token the user held before
+         */
+        private void issueSession() {
+            byte []bytes = new byte[32];
+            random.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+            String tokenHash = Snapshot.hashToken(token);
+            sessions.put(tokenHash, new Snapshot.Session(tokenHash, this.username, System.currentTimeMillis() + SESSION_TTL_MILLIS, this.presenceUpdates));
+            this.sessionHash = tokenHash;
+
+            // one live session per user, so a password login revokes any token an earlier connection left behind
+            String previous = userSessions.put(this.username, tokenHash);
+            if (previous != null && !previous.equals(tokenHash)) sessions.remove(previous);
+            out.println("Session saved.  Resume with /resume " + token);
+        }
+
+        /**
+         * Tells a newly logged in client the last delivered id of each of its rooms,
+         * so a reconnecting client can replay only what it missed.
+         * Messages still in flight arrive live, since the client is already bound.
+         */
+        private void announceRooms() {
+            for (String roomName : new String[]{ALL_ROOM, mailbox(this.username)}) {
+                Sequencer.Room room = sequencer.find(roomName);
+                out.println("Room " + roomName + " is at #" + (room == null ? 0 : room.delivered()) + '.');
+            }
+        }
+
+        /**
+         * Resends recent messages of a room
+         *
+         * @param data room, first id and optional last id separated by spaces
+         */
+        private void replay(String data) {
+            if (!this.isLoggedIn) {
+                out.println("You cannot replay without logging in.");
+                serverOut.println("Client " + id + " sent /replay without login.");
+                return;
+            }
+
+            String []args = data.split(" ");
+            long from;
+            long to;
+            try {
+                if (args.length < 2 || args.length > 3) throw new NumberFormatException();
+                from = Long.parseLong(args[1]);
+                to = args.length == 3 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+            } catch (NumberFormatException numberFormatException) {
+                out.println("Usage: /replay [room] [from] [to]");
+                return;
+            }
+
+            // mailboxes are private
+            String roomName = UserTable.fold(args[0]);
+            if (roomName.startsWith("@") && !roomName.equals(mailbox(this.username))) {
+                out.println("You can only replay your own direct messages.");
+                serverOut.println(this.username + " tried to replay " + roomName);
+                return;
+            }
+
+            Sequencer.Room room = sequencer.find(roomName);
+            List<Sequencer.Message> messages = room == null ? Collections.emptyList() : room.range(from, to);
+            out.println("Replaying " + messages.size() + " messages from " + roomName + '.');
+            for (Sequencer.Message message : messages) {
+                out.println(format(message, this.userId));
+            }
+            serverOut.println(this.username + " replayed " + messages.size() + " messages from " + roomName);
+        }
+
+        /**
+         * Finds recent messages in the all room
+         *
+         * @param data words to match, plus optional from:UserID
+         */
+        private void search(String data) {
+            if (!this.isLoggedIn) {
+                out.println("You cannot search without logging in.");
+                serverOut.println("Client " + id + " sent /search without login.");
+                return;
+            }
+            if (data.isBlank()) {
+                out.println("Usage: /search [words] [from:UserID]");
+                out.println("Index: " + searchIndex.stats());
+                return;
+            }
+
+            List<SearchIndex.Hit> hits = searchIndex.search(data, SEARCH_RESULTS);
+            out.println(hits.size() + (hits.size() == SEARCH_RESULTS ? "+" : "") + " matches for `" + data + "`.");
+            for (SearchIndex.Hit hit : hits) {
+                out.println("\t#" + hit.id + ' ' + hit.user + ": " + hit.text);
+            }
+            serverOut.println(this.username + " searched for `" + data + "`: " + hits.size() + " matches.");
         }
 
         /**
@@ -305,18 +1045,18 @@ public class Server implements AutoCloseable
         private void logout() {
             // notify of logout
             serverOut.println(this.username + " logged out.");
-            activeLogins.forEach((loginUsername, loginClientId) -> {
-                try {
-                    clients.get(loginClientId).getOutputStream().write((this.username + " logged out.").getBytes());
-                    clients.get(loginClientId).getOutputStream().flush();
-                } catch (IOException ioException) {
-                    serverOut.println("Client " + loginClientId + " was unresponsive: " + ioException);
-                }
-            });
 
             this.isLoggedIn = false;
-            activeLogins.remove(this.username);
+            if (this.sessionHash != null) {
+                sessions.remove(this.sessionHash);
+                userSessions.remove(this.username, this.sessionHash);
+            }
+            this.sessionHash = null;
+            activeLogins.unbind(this.userId, this);
+            presence.left(this.username, this.id);
+            if (events.hasSubscribers()) events.publish(ChatEvent.logout(this.id, this.username));
             this.username = null;
+            this.userId = UserTable.UNKNOWN;
         }
 
         /**
@@ -342,8 +1082,8 @@ public class Server implements AutoCloseable
                 return;
             }
 
-            // can't recreate user
-            if (logins.containsKey(username)) {
+            // can't recreate user, in any case
+            if (users.find(username) != UserTable.UNKNOWN) {
                 out.println("User already exists.");
                 serverOut.println("Client " + id + " tried to recreate `" + username + "`.");
                 return;
@@ -358,35 +1098,58 @@ public class Server implements AutoCloseable
                 return;
             }
 
+            // take the name before the slow hash, so nobody else can create it meanwhile
+            int newUserId = users.claim(username);
+            if (newUserId == UserTable.UNKNOWN) {
+                out.println("User already exists.");
+                serverOut.println("Client " + id + " tried to recreate `" + username + "`.");
+                return;
+            }
+
             // hash password
+            ServerEvents.LoginEvent event = new ServerEvents.LoginEvent();
+            event.begin();
+            long hashStart = System.nanoTime();
             password = auther.hash(password.toCharArray());
+            long hashDuration = System.nanoTime() - hashStart;
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientId = this.id;
+                event.username = username;
+                event.newUser = true;
+                event.success = true;
+                event.hashDuration = hashDuration;
+                event.commit();
+            }
 
-            // save to logins file
-            try {
-                Path file = Paths.get("logins.txt");
-                Files.write(file, Collections.singletonList(username + ':' + password), Charset.forName("UTF-8"), StandardOpenOption.APPEND);
-            } catch (IOException ioException) {
-                ioException.printStackTrace();
+            // save to logins file, together with the map so snapshots see both or neither
+            synchronized (logins) {
+                try {
+                    Path file = Paths.get("logins.txt");
+                    Files.write(file, Collections.singletonList(username + ':' + password), Charset.forName("UTF-8"), StandardOpenOption.APPEND);
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
+                }
+                logins.put(username, password);
             }
             serverOut.println(username + " appended to logins.txt");
 
-            logins.put(username, password);
-
             // log in user
+            if (!activeLogins.bind(newUserId, this)) {
+                out.println(username + " was created but is already logged in.");
+                serverOut.println("Client " + id + " created " + username + " but couldn't log in to it.");
+                return;
+            }
             this.isLoggedIn = true;
             this.username = username;
-            activeLogins.put(this.username, this.id);
+            this.userId = newUserId;
 
             // notify of new user and login
             serverOut.println("Created and logged in user " + this.username + " on Client " + id);
-            activeLogins.forEach((loginUsername, loginClientId) -> {
-                try {
-                    clients.get(loginClientId).getOutputStream().write((this.username + " logged in with a new account.").getBytes());
-                    clients.get(loginClientId).getOutputStream().flush();
-                } catch (IOException ioException) {
-                    serverOut.println("Client " + loginClientId + " was unresponsive: " + ioException);
-                }
-            });
+            presence.joined(this.username, this.id, String.valueOf(socket.getRemoteSocketAddress()), true);
+            if (events.hasSubscribers()) events.publish(ChatEvent.login(this.id, this.username));
+            this.issueSession();
+            this.announceRooms();
         }
 
         /**
@@ -406,46 +1169,40 @@ public class Server implements AutoCloseable
             }
 
             // all
-            if (intended.compareToIgnoreCase("all") == 0) {
-                // broadcast message to all logged in users
+            if (intended.compareToIgnoreCase(ALL_ROOM) == 0) {
+                // broadcast message to all logged in users, in room order
                 serverOut.println(this.username + ": " + data);
-                activeLogins.forEach((loginUsername, loginClientId) -> {
-                    try {
-                        if (loginUsername.compareToIgnoreCase(this.username) == 0) {
-                            // talk to yourself
-                            clients.get(loginClientId).getOutputStream().write(("you: " + message).getBytes());
-                            clients.get(loginClientId).getOutputStream().flush();
-                        } else {
-                            clients.get(loginClientId).getOutputStream().write((this.username + ": " + message).getBytes());
-                            clients.get(loginClientId).getOutputStream().flush();
-                        }
-                    } catch (IOException ioException) {
-                        serverOut.println("Client " + loginClientId + " was unresponsive: " + ioException);
-                        this.out.println(loginUsername + " was unresponsive.");
-                    }
-                });
+                long messageId = sequencer.room(ALL_ROOM, ROOM_HISTORY)
+                        .publish(new Sequencer.Message(ALL_ROOM, this.userId, this.id, this.username, UserTable.UNKNOWN, message));
+                if (messageId == Sequencer.BACKED_UP) {
+                    out.println("Chat is backed up, message not sent.  Try again shortly.");
+                    serverOut.println(this.username + "'s message was dropped because " + ALL_ROOM + " is backed up.");
+                }
                 return;
             }
 
             // talking to myself
-            if (intended.compareToIgnoreCase(this.username) == 0) {
+            int intendedUserId = users.find(intended);
+            if (intendedUserId == this.userId) {
                 this.out.println("you (from yourself): " + message);
                 serverOut.println(this.username + " (to themself): " + message);
                 return;
             }
 
-            // find intended and write message to them
-            Socket s = clients.get(activeLogins.get(intended));
-            if (s != null) {
-                try {
-                    s.getOutputStream().write((this.username + "(to you): " + message).getBytes());
-                    s.getOutputStream().flush();
-                    this.out.println("you (to " + intended + "): " + message);
-                    serverOut.println(this.username + "(to " + intended + "): " + message);
-                } catch (IOException ioException) {
-                    serverOut.println("Client " + activeLogins.get(intended) + " was unresponsive: " + ioException);
-                    this.out.println(intended + " was unresponsive.");
+            // find intended and queue message in their mailbox
+            ClientHandler recipient = activeLogins.get(intendedUserId);
+            if (recipient != null) {
+                // the recipient's own name may be cleared by a racing logout
+                String room = mailbox(users.name(intendedUserId));
+                long messageId = sequencer.room(room, MAILBOX_HISTORY)
+                        .publish(new Sequencer.Message(room, this.userId, this.id, this.username, intendedUserId, message));
+                if (messageId == Sequencer.BACKED_UP) {
+                    this.out.println(intended + " is not keeping up, message not sent.");
+                    serverOut.println(this.username + "'s message was dropped because " + room + " is backed up.");
+                    return;
                 }
+                this.out.println("you (to " + intended + "): " + message);
+                serverOut.println(this.username + "(to " + intended + "): " + message);
             } else {
                 this.out.println(intended + " is not on this server.");
                 serverOut.println(this.username + " failed to send message to " + intended + " because intended is not logged in.");
@@ -453,16 +1210,89 @@ public class Server implements AutoCloseable
         }
 
         /**
-         * Displays all logged-in users
+         * Displays one page of logged-in users
+         *
+         * @param data optional name prefix, then optional {@code after UserID} to continue from a previous page
          */
-        private void who() {
+        private void who(String data) {
             serverOut.println("Client " + id + " sent /who command.");
 
-            // loop over logged-in clients
-            activeLogins.forEach((clientUsername, clientId) -> {
-                out.println(activeLogins.get(clientUsername) + "\t\tClient " + clientId + '\t' + clients.get(clientId).getRemoteSocketAddress());
-            });
-            out.println(activeLogins.size() + " logged in users.");
+            // parse [prefix] [after UserID] by position, since usernames can look like anything
+            String []args = data.isEmpty() ? new String[0] : data.split(" ");
+            String prefix = "";
+            String after = null;
+            if (args.length == 1) {
+                prefix = args[0];
+            } else if (args.length == 2 && args[0].equals("after")) {
+                after = args[1];
+            } else if (args.length == 3 && args[1].equals("after")) {
+                prefix = args[0];
+                after = args[2];
+            } else if (args.length != 0) {
+                out.println("Usage: /who [prefix] [after UserID]");
+                return;
+            }
+
+            // presence entries outlive disconnecting clients
+            boolean []more = new boolean[1];
+            List<Presence.Entry> loggedIn = presence.page(prefix, after, WHO_PAGE_SIZE, more);
+            for (Presence.Entry entry : loggedIn) {
+                out.println(entry.username + "\t\tClient " + entry.clientId + '\t' + entry.address);
+            }
+
+            if (loggedIn.isEmpty()) {
+                out.println(prefix.isEmpty() ? "No more users." : "No more users matching `" + prefix + "`.");
+            } else if (more[0]) {
+                String last = loggedIn.get(loggedIn.size() - 1).username;
+                out.println("Type /who " + (prefix.isEmpty() ? "" : prefix + ' ') + "after " + last + " for more.");
+            }
+            out.println(presence.count() + " logged in users.");
+        }
+
+        /**
+         * Switches both directions of this connection to deflate
+         *
+         * @throws IOException Thrown when the socket fails
+         */
+        private void compress() throws IOException {
+            if (connection.isCompressed()) {
+                out.println("Compression already on.");
+                return;
+            }
+
+            // acknowledge in plain text, then both sides switch
+            connection.startDeflate(Compression.ACK);
+            connection.startInflate();
+            serverOut.println("Client " + id + " turned on compression.");
+        }
+
+        /**
+         * Turns login and logout notifications on or off
+         *
+         * @param data on or off
+         */
+        private void presence(String data) {
+            switch (data) {
+                case "on":
+                    this.presenceUpdates = true;
+                    break;
+                case "off":
+                    this.presenceUpdates = false;
+                    break;
+                default:
+                    // no argument toggles
+                    this.presenceUpdates = !this.presenceUpdates;
+                    break;
+            }
+            out.println("Presence updates " + (this.presenceUpdates ? "on." : "off."));
+
+            // a resumed session keeps the setting
+            String tokenHash = this.sessionHash;
+            boolean presenceUpdates = this.presenceUpdates;
+            if (tokenHash != null) {
+                sessions.computeIfPresent(tokenHash, (key, session) -> new Snapshot.Session(key, session.username, session.expiresAt, presenceUpdates));
+            }
+            serverOut.println("Client " + id + " turned presence updates " + (this.presenceUpdates ? "on." : "off."));
         }
 
         /**
@@ -480,30 +1310,127 @@ public class Server implements AutoCloseable
             out.println("\t/help - this message");
             out.println("\t/login [UserID] [Password] - log in to chatroom");
             out.println("\t/newuser [UserID] [Password] - create new user and log in");
+            out.println("\t/resume [token] - log back in after a disconnect or restart");
             out.println("\t/say [all|UserID] [message] - send a message to a specific user");
-            out.println("\t/who - list logged in users");
+            out.println("\t/replay [all|@UserID] [from] [to] - resend recent messages by id");
+            out.println("\t/search [words] [from:UserID] - find recent messages in all");
+            out.println("\t/who [prefix] [after UserID] - list logged in users, a page at a time");
             out.println("\t/whoami - display current user or current client id");
+            out.println("\t/presence [on|off] - show or hide login and logout notifications");
+            out.println("\t/stats - display bytes sent and received on this connection");
             out.println("\t/logout - leave chat room");
             out.println("\t/exit - end client connection to server");
         }
     }
 
     /**
-     * Closes all sockets and server
+     * Starts a flight recording of the server's JFR events along with the JDK defaults.
+     * The recording is dumped to the destination when the server closes.
+     *
+     * @param destination file to write the recording to
+     * @throws IOException Thrown when the destination can't be written
+     */
+    public synchronized void startRecording(Path destination) throws IOException {
+        if (this.recording != null) return;
+
+        try {
+            this.recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException parseException) {
+            throw new IOException("Invalid JFR configuration", parseException);
+        }
+        this.recording.setName("chatroom");
+        this.recording.setDestination(destination);
+        this.recording.setToDisk(true);
+        this.recording.start();
+
+        serverOut.println("Flight recording started: " + destination);
+    }
+
+    /**
+     * Stops the flight recording, writing it to its destination
+     */
+    public synchronized void stopRecording() {
+        if (this.recording == null) return;
+
+        this.recording.stop();
+        this.recording.close();
+        serverOut.println("Flight recording written: " + this.recording.getDestination());
+        this.recording = null;
+    }
+
+    /**
+     * Stops accepting connections and tells every client to reconnect,
+     * each after its own delay within the spread so they don't all return at once.
+     * Logged in clients come back with /resume instead of hashing their passwords again.
+     *
+     * @param spreadMillis window the reconnects are spread over
+     */
+    public void drain(long spreadMillis) {
+        if (this.drained) return;
+        this.drained = true;
+
+        serverOut.println("Draining clients...");
+        try {
+            if (this.serverSocket != null) this.serverSocket.close();
+        } catch (IOException ioException) {
+            serverOut.println("Couldn't stop listening: " + ioException.getMessage());
+        }
+        this.writeSnapshot();
+
+        List<ClientHandler> handlers = new ArrayList<>();
+        synchronized (this.clients) {
+            this.clients.forEach((client, clientId) -> handlers.add(client));
+        }
+
+        // one slot of the spread per client, jittered within the slot
+        long slot = spreadMillis / Math.max(1, handlers.size());
+        for (int i = 0; i < handlers.size(); i++) {
+            ClientHandler handler = handlers.get(i);
+            long delay = RECONNECT_MIN_MILLIS + slot * i + ThreadLocalRandom.current().nextLong(slot + 1);
+            try {
+                if (handler.connection != null) handler.write("Server is restarting.  Reconnect in " + delay + " ms.");
+                handler.close();
+            } catch (IOException ioException) {
+                serverOut.println("Client " + handler.id + " was unresponsive: " + ioException);
+            }
+        }
+        serverOut.println(handlers.size() + " clients told to reconnect within " + (RECONNECT_MIN_MILLIS + spreadMillis) + " ms.");
+    }
+
+    /**
+     * Drains clients, unless already drained, then closes all sockets and server
      */
     @Override
     public void close() {
+        this.stopRecording();
+        this.snapshotter.shutdownNow();
+        this.drain(DRAIN_SPREAD_MILLIS);
+        this.writeSnapshot();
+        if (this.handshakes != null) this.handshakes.shutdownNow();
+        if (this.handshakeDeadlines != null) this.handshakeDeadlines.shutdownNow();
         try {
             this.serverOut.close();
+            this.presence.close();
+            this.events.close();
+            this.searchIndex.close();
             this.activeLogins.clear();
-            // loop over all entries
-            for (Map.Entry<Integer, Socket> s : this.clients.entrySet()) {
+            // loop over all clients
+            List<Socket> sockets = new ArrayList<>();
+            synchronized (this.clients) {
+                this.clients.forEach((client, clientId) -> sockets.add(client.socket));
+            }
+            for (Socket s : sockets) {
                 // close sockets
-                s.getValue().close();
+                s.close();
             }
             // close server
             if (this.serverSocket != null)
                 serverSocket.close();
+
+            // only populated with -Dchatroom.pool.leakDetection=true
+            for (Throwable leak : BufferPool.leaks()) {
+                leak.printStackTrace();
+            }
         } catch (IOException ioexception) {
             ioexception.printStackTrace();
         }
@@ -526,6 +1453,29 @@ public class Server implements AutoCloseable
         }
     }
 
+    /**
+     * Subscribes to every server event, delivered in batches of up to 64 on a separate thread
+     *
+     * @param listener receives events
+     * @return subscription to close when done
+     */
+    public EventBus.Subscription subscribe(ChatEventListener listener) {
+        return this.subscribe(listener, event -> true, 64);
+    }
+
+    /**
+     * Subscribes to server events on a separate thread, without slowing message delivery.
+     * A listener that falls too far behind misses events; see {@link EventBus.Subscription#dropped()}.
+     *
+     * @param listener receives events
+     * @param filter which events to deliver, evaluated on the subscription's thread
+     * @param maxBatch most events per call to the listener
+     * @return subscription to close when done
+     */
+    public EventBus.Subscription subscribe(ChatEventListener listener, Predicate<ChatEvent> filter, int maxBatch) {
+        return this.events.subscribe(listener, filter, maxBatch);
+    }
+
     public void addPropertyChangeListener(PropertyChangeListener listener) {
         this.boundProperties.addPropertyChangeListener(listener);
     }
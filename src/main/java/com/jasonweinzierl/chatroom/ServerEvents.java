@@ -0,0 +1,174 @@
+package com.jasonweinzierl.chatroom;
+
+import jdk.jfr.*;
+
+/**
+ * chatroom
+ *
+ * Java Flight Recorder events emitted by the {@link Server}.
+ * Events cost next to nothing unless a recording is running,
+ * so they can stay in place in production builds.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class ServerEvents
+{
+    private static final String CATEGORY = "Chatroom";
+
+    private ServerEvents() {
+    }
+
+    @Name("com.jasonweinzierl.chatroom.Accept")
+    @Label("Connection Accepted")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    static class AcceptEvent extends Event {
+        @Label("Client Id")
+        int clientId;
+
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Rejected")
+        @Description("Connection was turned away because the server is full")
+        boolean rejected;
+    }
+
+    @Name("com.jasonweinzierl.chatroom.Handshake")
+    @Label("TLS Handshake")
+    @Category({CATEGORY, "Connection"})
+    @Description("TLS handshake on either side; resumed handshakes skip the key exchange")
+    @StackTrace(false)
+    static class HandshakeEvent extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Client Mode")
+        boolean clientMode;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Cipher Suite")
+        String cipherSuite;
+
+        @Label("Resumed")
+        boolean resumed;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.jasonweinzierl.chatroom.Login")
+    @Label("Login")
+    @Category({CATEGORY, "Authentication"})
+    @Description("Login or new user attempt; duration covers the PBKDF2 work")
+    @StackTrace(false)
+    static class LoginEvent extends Event {
+        @Label("Client Id")
+        int clientId;
+
+        @Label("Username")
+        String username;
+
+        @Label("New User")
+        boolean newUser;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("PBKDF2 Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long hashDuration;
+
+        @Label("Rehash Needed")
+        @Description("Stored hash used a different algorithm or strength than the calibrated one")
+        boolean rehash;
+    }
+
+    @Name("com.jasonweinzierl.chatroom.Broadcast")
+    @Label("Broadcast")
+    @Category({CATEGORY, "Messaging"})
+    @Description("One chat message written to every logged in user; duration is the total write time")
+    @StackTrace(false)
+    static class BroadcastEvent extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Sequence")
+        long sequence;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Failed Recipients")
+        int failures;
+    }
+
+    @Name("com.jasonweinzierl.chatroom.SlowWrite")
+    @Label("Slow Recipient Write")
+    @Category({CATEGORY, "Messaging"})
+    @Description("A single socket write that took longer than the threshold")
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static class SlowWriteEvent extends Event {
+        @Label("Client Id")
+        int clientId;
+
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.jasonweinzierl.chatroom.Disconnect")
+    @Label("Disconnect")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    static class DisconnectEvent extends Event {
+        @Label("Client Id")
+        int clientId;
+
+        @Label("Username")
+        String username;
+
+        @Label("Abrupt")
+        @Description("Socket failed instead of closing normally")
+        boolean abrupt;
+
+        @Label("Reason")
+        String reason;
+
+        @Label("Connected For")
+        @Timespan(Timespan.NANOSECONDS)
+        long connectedFor;
+
+        @Label("Compressed")
+        boolean compressed;
+
+        @Label("Bytes Sent")
+        @Description("Before compression")
+        @DataAmount
+        long rawBytesOut;
+
+        @Label("Wire Bytes Sent")
+        @DataAmount
+        long wireBytesOut;
+
+        @Label("Bytes Received")
+        @Description("After decompression")
+        @DataAmount
+        long rawBytesIn;
+
+        @Label("Wire Bytes Received")
+        @DataAmount
+        long wireBytesIn;
+    }
+}
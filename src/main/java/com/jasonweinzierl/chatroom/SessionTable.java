@@ -0,0 +1,97 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.Arrays;
+
+/**
+ * chatroom
+ *
+ * Active sessions indexed by {@link UserTable} id.
+ * Routing reads a plain array slot, and broadcasts walk a copy-on-write
+ * array of active ids, so neither boxes, hashes, nor takes a lock.
+ * Changes happen on login and logout and are synchronized.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ *
+ * @param <S> session type
+ */
+final class SessionTable<S>
+{
+    private static final int []NONE = new int[0];
+
+    private volatile Object []sessions = new Object[32];
+    private volatile int []active = NONE;
+
+    /**
+     * Binds a session to a user unless the user already has one
+     *
+     * @param userId interned user id
+     * @param session session to bind
+     * @return true if bound, false if user was already active
+     */
+    synchronized boolean bind(int userId, S session) {
+        Object []table = this.sessions;
+        if (userId >= table.length) {
+            table = Arrays.copyOf(table, Math.max(table.length << 1, userId + 1));
+        }
+        if (table[userId] != null) return false;
+
+        table[userId] = session;
+        this.sessions = table;
+
+        // publish after the slot is written
+        int []next = Arrays.copyOf(active, active.length + 1);
+        next[active.length] = userId;
+        this.active = next;
+        return true;
+    }
+
+    /**
+     * Removes a user's session if it is still the given one
+     *
+     * @param userId interned user id
+     * @param session session expected to be bound
+     */
+    synchronized void unbind(int userId, S session) {
+        Object []table = this.sessions;
+        if (userId >= table.length || table[userId] != session) return;
+
+        int []current = this.active;
+        int []next = new int[current.length - 1];
+        for (int i = 0, j = 0; i < current.length; i++) {
+            if (current[i] != userId) next[j++] = current[i];
+        }
+        this.active = next;
+
+        table[userId] = null;
+    }
+
+    /**
+     * @param userId interned user id
+     * @return the user's session, or null if not active
+     */
+    @SuppressWarnings("unchecked")
+    S get(int userId) {
+        if (userId < 0) return null;
+        Object []table = this.sessions;
+        return userId < table.length ? (S) table[userId] : null;
+    }
+
+    /**
+     * Snapshot of active user ids.  Callers must not modify it.
+     *
+     * @return ids of active users
+     */
+    int []active() {
+        return this.active;
+    }
+
+    int size() {
+        return this.active.length;
+    }
+
+    synchronized void clear() {
+        this.sessions = new Object[32];
+        this.active = NONE;
+    }
+}
@@ -0,0 +1,197 @@
+package com.jasonweinzierl.chatroom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * chatroom
+ *
+ * Server state saved across restarts: the calibrated password hash strength, the credentials index,
+ * resumable sessions with each one's presence setting, and every room's latest message id.
+ * A restarted server maps the file instead of re-reading logins.txt,
+ * lets clients resume their sessions without hashing a password again,
+ * and keeps numbering each room where it left off so clients can still spot gaps.
+ *
+ * The format is big-endian: a magic number and version, then length-prefixed sections.
+ * Strings are an unsigned short byte count followed by UTF-8.
+ * Sessions are stored by a SHA-256 of their token, so a copy of the file can't be used to log in.
+ * Files are written beside the old one and moved over it, so a crash never leaves half a snapshot.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Snapshot
+{
+    private static final int MAGIC = 0x43485331;    // CHS1
+    private static final short VERSION = 4;
+
+    /**
+     * A login that can be resumed with its token instead of a password
+     */
+    static final class Session {
+        final String tokenHash;
+        final String username;
+        final long expiresAt;
+        final boolean presenceUpdates;
+
+        Session(String tokenHash, String username, long expiresAt, boolean presenceUpdates) {
+            this.tokenHash = tokenHash;
+            this.username = username;
+            this.expiresAt = expiresAt;
+            this.presenceUpdates = presenceUpdates;
+        }
+    }
+
+    long writtenAt;
+
+    // password hash strength calibrated for a login budget on a machine, or zero if not calibrated yet
+    long hashBudgetMillis;
+    int hashStrength;
+    String hashMachine = "";
+
+    // size and modification time of logins.txt when the credentials were copied
+    long loginsSize;
+    long loginsModified;
+
+    final Map<String, String> credentials = new LinkedHashMap<>();
+    final List<Session> sessions = new ArrayList<>();
+    final Map<String, Long> rooms = new LinkedHashMap<>();
+
+    /**
+     * Writes the snapshot, replacing any previous one
+     *
+     * @param file snapshot file
+     * @throws IOException Thrown when the file can't be written
+     */
+    void write(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(this.writtenAt);
+            out.writeLong(this.hashBudgetMillis);
+            out.writeInt(this.hashStrength);
+            writeString(out, this.hashMachine);
+
+            out.writeLong(this.loginsSize);
+            out.writeLong(this.loginsModified);
+            out.writeInt(this.credentials.size());
+            for (Map.Entry<String, String> credential : this.credentials.entrySet()) {
+                writeString(out, credential.getKey());
+                writeString(out, credential.getValue());
+            }
+
+            out.writeInt(this.sessions.size());
+            for (Session session : this.sessions) {
+                writeString(out, session.tokenHash);
+                writeString(out, session.username);
+                out.writeLong(session.expiresAt);
+                out.writeBoolean(session.presenceUpdates);
+            }
+
+            out.writeInt(this.rooms.size());
+            for (Map.Entry<String, Long> room : this.rooms.entrySet()) {
+                writeString(out, room.getKey());
+                out.writeLong(room.getValue());
+            }
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hashes a session token for storage, so only the client holds the token itself
+     *
+     * @param token session token
+     * @return SHA-256 of the token, base64url encoded
+     */
+    static String hashToken(String token) {
+        try {
+            byte []hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException n) {
+            throw new IllegalStateException("Missing algorithm: SHA-256", n);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte []utf8 = string.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) throw new IOException("String too long for snapshot: " + utf8.length + " bytes");
+        out.writeShort(utf8.length);
+        out.write(utf8);
+    }
+
+    /**
+     * Maps a snapshot file and reads it
+     *
+     * @param file snapshot file
+     * @return snapshot
+     * @throws IOException Thrown when the file is missing, unreadable or corrupt
+     */
+    static Snapshot read(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a snapshot: " + file);
+            short version = buffer.getShort();
+            if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+
+            Snapshot snapshot = new Snapshot();
+            snapshot.writtenAt = buffer.getLong();
+            snapshot.hashBudgetMillis = buffer.getLong();
+            snapshot.hashStrength = buffer.getInt();
+            snapshot.hashMachine = readString(buffer);
+
+            snapshot.loginsSize = buffer.getLong();
+            snapshot.loginsModified = buffer.getLong();
+            for (int i = count(buffer); i > 0; i--) {
+                snapshot.credentials.put(readString(buffer), readString(buffer));
+            }
+
+            for (int i = count(buffer); i > 0; i--) {
+                snapshot.sessions.add(new Session(readString(buffer), readString(buffer), buffer.getLong(), buffer.get() != 0));
+            }
+
+            for (int i = count(buffer); i > 0; i--) {
+                snapshot.rooms.put(readString(buffer), buffer.getLong());
+            }
+            return snapshot;
+        } catch (BufferUnderflowException bufferUnderflowException) {
+            throw new IOException("Truncated snapshot: " + file, bufferUnderflowException);
+        }
+    }
+
+    private static int count(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) throw new IOException("Corrupt snapshot section of " + count);
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte []utf8 = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,476 @@
+package com.jasonweinzierl.chatroom;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * chatroom
+ *
+ * Optional TLS for {@link Server} and {@link Client}, driven through an {@link SSLEngine}
+ * so the same record handling would work under a non-blocking server.
+ * Each {@link Transport} turns a socket into plain input and output streams for {@link Connection}.
+ * Contexts are shared per process, so reconnecting clients resume their TLS session
+ * instead of paying for a full handshake.
+ *
+ * The server turns TLS on with {@code -Dchatroom.tls.keyStore=file} and
+ * {@code -Dchatroom.tls.keyStorePassword=password}.  Clients turn it on with
+ * {@code -Dchatroom.tls=true} and may trust a self-signed server with
+ * {@code -Dchatroom.tls.trustStore=file} and {@code -Dchatroom.tls.trustStorePassword=password}.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class Tls
+{
+    private static final String KEY_STORE = System.getProperty("chatroom.tls.keyStore");
+    private static final String KEY_STORE_PASSWORD = System.getProperty("chatroom.tls.keyStorePassword", "");
+    private static final String TRUST_STORE = System.getProperty("chatroom.tls.trustStore");
+    private static final String TRUST_STORE_PASSWORD = System.getProperty("chatroom.tls.trustStorePassword", "");
+
+    // sessions the server remembers for resumption, and for how long
+    private static final int SESSION_CACHE_SIZE = 10000;
+    private static final int SESSION_TIMEOUT_SECONDS = (int) TimeUnit.DAYS.toSeconds(1);
+
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder fullNanos = new LongAdder();
+    private static final LongAdder resumedNanos = new LongAdder();
+
+    private Tls() {
+    }
+
+    /**
+     * @return true if the server was given a key store
+     */
+    static boolean serverEnabled() {
+        return KEY_STORE != null;
+    }
+
+    /**
+     * @return true if clients should connect with TLS by default
+     */
+    static boolean clientEnabled() {
+        return Boolean.getBoolean("chatroom.tls");
+    }
+
+    /**
+     * Starts a server side transport.  Call {@link Transport#handshake()} before using its streams.
+     *
+     * @param socket accepted socket
+     * @return transport
+     * @throws IOException Thrown when the key store can't be loaded
+     */
+    static Transport server(Socket socket) throws IOException {
+        SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return new Transport(socket, engine);
+    }
+
+    /**
+     * Starts a client side transport.  Call {@link Transport#handshake()} before using its streams.
+     *
+     * @param socket connected socket
+     * @param host server name, checked against the server's certificate
+     * @param port server port, which along with host finds a session to resume
+     * @return transport
+     * @throws IOException Thrown when the trust store can't be loaded
+     */
+    static Transport client(Socket socket, String host, int port) throws IOException {
+        SSLEngine engine = clientContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return new Transport(socket, engine);
+    }
+
+    private static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext != null) return serverContext;
+        if (KEY_STORE == null) throw new IOException("No key store, set chatroom.tls.keyStore");
+
+        try {
+            char []password = KEY_STORE_PASSWORD.toCharArray();
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(new File(KEY_STORE), password), password);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return serverContext = context;
+        } catch (GeneralSecurityException generalSecurityException) {
+            throw new IOException("Couldn't load key store " + KEY_STORE, generalSecurityException);
+        }
+    }
+
+    private static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext != null) return clientContext;
+
+        try {
+            // the JDK's trusted certificates, unless given a trust store
+            TrustManager []trust = null;
+            if (TRUST_STORE != null) {
+                TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustFactory.init(KeyStore.getInstance(new File(TRUST_STORE), TRUST_STORE_PASSWORD.toCharArray()));
+                trust = trustFactory.getTrustManagers();
+            }
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust, null);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return clientContext = context;
+        } catch (GeneralSecurityException generalSecurityException) {
+            throw new IOException("Couldn't load trust store " + TRUST_STORE, generalSecurityException);
+        }
+    }
+
+    /**
+     * @return handshake counts and average latency
+     */
+    static String stats() {
+        long full = handshakes.sum() - resumed.sum();
+        return handshakes.sum() + " handshakes (" + resumed.sum() + " resumed, " + failures.sum() + " failed), "
+                + "full " + average(fullNanos.sum(), full) + ", resumed " + average(resumedNanos.sum(), resumed.sum());
+    }
+
+    private static String average(long nanos, long count) {
+        return count == 0 ? "-" : String.format("%.1f ms", nanos / 1e6 / count);
+    }
+
+    /**
+     * A socket wrapped in an {@link SSLEngine}, read by one thread and written by any.
+     * Like {@link Connection}, it holds pooled buffers only while records are in flight.
+     */
+    static final class Transport {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final Socket socket;
+        private final SSLEngine engine;
+        private final InputStream wireIn;
+        private final OutputStream wireOut;
+
+        // input, owned by the reading thread; both in read mode, null when drained
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private boolean inputClosed;
+
+        // output, guarded by writeLock
+        private final Object writeLock = new Object();
+        private ByteBuffer pending;    // plain bytes waiting for flush
+
+        private boolean resumedSession;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte []one = new byte[1];
+                return this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte []b, int off, int len) throws IOException {
+                return Transport.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return appIn == null ? 0 : appIn.remaining();
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte []b, int off, int len) throws IOException {
+                Transport.this.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                Transport.this.flush();
+            }
+        };
+
+        private Transport(Socket socket, SSLEngine engine) throws IOException {
+            this.socket = socket;
+            this.engine = engine;
+            this.wireIn = socket.getInputStream();
+            this.wireOut = socket.getOutputStream();
+        }
+
+        /**
+         * Runs the handshake to completion, recording its latency
+         *
+         * @throws IOException Thrown when the handshake fails or the peer leaves
+         */
+        void handshake() throws IOException {
+            ServerEvents.HandshakeEvent event = new ServerEvents.HandshakeEvent();
+            event.begin();
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                this.engine.beginHandshake();
+                SSLEngineResult.HandshakeStatus status = this.engine.getHandshakeStatus();
+                while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    switch (status) {
+                        case NEED_WRAP:
+                            synchronized (this.writeLock) {
+                                status = this.wrap(EMPTY);
+                            }
+                            break;
+                        case NEED_UNWRAP:
+                        case NEED_UNWRAP_AGAIN:
+                            status = this.unwrap();
+                            if (status == null) throw new EOFException("Peer left during TLS handshake");
+                            break;
+                        case NEED_TASK:
+                            status = this.runTasks();
+                            break;
+                        default:
+                            throw new SSLException("Unexpected handshake status " + status);
+                    }
+                }
+                success = true;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                SSLSession session = this.engine.getSession();
+                // a resumed session was created by an earlier handshake
+                this.resumedSession = success && session.getCreationTime() < startMillis;
+
+                handshakes.increment();
+                if (!success) failures.increment();
+                else if (this.resumedSession) {
+                    resumed.increment();
+                    resumedNanos.add(nanos);
+                } else {
+                    fullNanos.add(nanos);
+                }
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.remoteAddress = String.valueOf(this.socket.getRemoteSocketAddress());
+                    event.clientMode = this.engine.getUseClientMode();
+                    event.protocol = session.getProtocol();
+                    event.cipherSuite = session.getCipherSuite();
+                    event.resumed = this.resumedSession;
+                    event.success = success;
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * @return true if the last handshake resumed an earlier session
+         */
+        boolean resumed() {
+            return this.resumedSession;
+        }
+
+        /**
+         * @return protocol and cipher suite in use
+         */
+        String describe() {
+            SSLSession session = this.engine.getSession();
+            return session.getProtocol() + ' ' + session.getCipherSuite() + (this.resumedSession ? " (resumed)" : "");
+        }
+
+        InputStream in() {
+            return this.in;
+        }
+
+        OutputStream out() {
+            return this.out;
+        }
+
+        private int read(byte []b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (this.appIn == null || !this.appIn.hasRemaining()) {
+                if (this.inputClosed || this.unwrap() == null) {
+                    this.releaseInput();
+                    return -1;
+                }
+            }
+
+            int read = Math.min(len, this.appIn.remaining());
+            this.appIn.get(b, off, read);
+            if (!this.appIn.hasRemaining() && (this.netIn == null || !this.netIn.hasRemaining())) this.releaseInput();
+            return read;
+        }
+
+        /**
+         * Unwraps one record, reading from the socket as needed
+         *
+         * @return handshake status afterwards, or null at end of stream
+         * @throws IOException Thrown when the socket fails or a record is bad
+         */
+        private SSLEngineResult.HandshakeStatus unwrap() throws IOException {
+            if ((this.netIn == null || !this.netIn.hasRemaining()) && !this.fill()) return null;
+            if (this.appIn == null) {
+                this.appIn = BufferPool.borrow(this.engine.getSession().getApplicationBufferSize());
+                this.appIn.flip();
+            }
+
+            while (true) {
+                this.appIn.compact();
+                SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+                this.appIn.flip();
+
+                switch (result.getStatus()) {
+                    case OK:
+                        return this.afterUnwrap(result.getHandshakeStatus());
+                    case BUFFER_UNDERFLOW:
+                        // partial record, read the rest
+                        if (!this.fill()) return null;
+                        break;
+                    case CLOSED:
+                        this.inputClosed = true;
+                        try {
+                            // answer close_notify with our own
+                            this.afterUnwrap(result.getHandshakeStatus());
+                        } catch (IOException alreadyClosed) {
+                            // peer didn't wait for it
+                        }
+                        return null;
+                    default:
+                        throw new SSLException("Unexpected unwrap status " + result.getStatus());
+                }
+            }
+        }
+
+        /**
+         * Answers anything the unwrapped record asked for, like a handshake message, key update or close
+         */
+        private SSLEngineResult.HandshakeStatus afterUnwrap(SSLEngineResult.HandshakeStatus status) throws IOException {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) status = this.runTasks();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                synchronized (this.writeLock) {
+                    status = this.wrap(EMPTY);
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Reads more records from the socket
+         *
+         * @return false at end of stream
+         * @throws IOException Thrown when the socket fails
+         */
+        private boolean fill() throws IOException {
+            if (this.netIn == null) {
+                // wait for the next record without holding a buffer
+                int first = this.wireIn.read();
+                if (first < 0) return false;
+                this.netIn = BufferPool.borrow(this.engine.getSession().getPacketBufferSize());
+                this.netIn.put((byte) first);
+                this.netIn.flip();
+                return true;
+            }
+
+            this.netIn.compact();
+            int read = this.wireIn.read(this.netIn.array(), this.netIn.position(), this.netIn.remaining());
+            if (read > 0) this.netIn.position(this.netIn.position() + read);
+            this.netIn.flip();
+            return read >= 0;
+        }
+
+        private void releaseInput() {
+            if (this.netIn != null && !this.netIn.hasRemaining()) {
+                BufferPool.release(this.netIn);
+                this.netIn = null;
+            }
+            if (this.appIn != null && !this.appIn.hasRemaining()) {
+                BufferPool.release(this.appIn);
+                this.appIn = null;
+            }
+        }
+
+        private void write(byte []b, int off, int len) throws IOException {
+            synchronized (this.writeLock) {
+                while (len > 0) {
+                    if (this.pending == null) this.pending = BufferPool.borrow(BufferPool.MEDIUM);
+                    int put = Math.min(len, this.pending.remaining());
+                    this.pending.put(b, off, put);
+                    off += put;
+                    len -= put;
+                    if (!this.pending.hasRemaining()) this.flush();
+                }
+            }
+        }
+
+        /**
+         * Sends everything written since the last flush, as few records as possible
+         */
+        private void flush() throws IOException {
+            synchronized (this.writeLock) {
+                if (this.pending == null) return;
+                try {
+                    this.pending.flip();
+                    this.wrap(this.pending);
+                } finally {
+                    BufferPool.release(this.pending);
+                    this.pending = null;
+                }
+            }
+        }
+
+        /**
+         * Wraps and sends plain bytes.  Caller holds writeLock.
+         *
+         * @param source plain bytes, or empty for handshake messages
+         * @return handshake status afterwards
+         * @throws IOException Thrown when the socket fails
+         */
+        private SSLEngineResult.HandshakeStatus wrap(ByteBuffer source) throws IOException {
+            ByteBuffer netOut = BufferPool.borrow(this.engine.getSession().getPacketBufferSize());
+            try {
+                SSLEngineResult result;
+                do {
+                    netOut.clear();
+                    result = this.engine.wrap(source, netOut);
+                    if (result.getStatus() != SSLEngineResult.Status.OK && result.getStatus() != SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Unexpected wrap status " + result.getStatus());
+                    }
+                    this.wireOut.write(netOut.array(), 0, netOut.position());
+
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED && source.hasRemaining()) {
+                        throw new SSLException("TLS session closed");
+                    }
+                } while (source.hasRemaining());
+                this.wireOut.flush();
+
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                return status == SSLEngineResult.HandshakeStatus.NEED_TASK ? this.runTasks() : status;
+            } finally {
+                BufferPool.release(netOut);
+            }
+        }
+
+        /**
+         * Runs the engine's slow work, like certificate checks, on the calling thread.
+         * The server only handshakes on its handshake pool, so this stays off chat threads.
+         */
+        private SSLEngineResult.HandshakeStatus runTasks() {
+            Runnable task;
+            while ((task = this.engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return this.engine.getHandshakeStatus();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.jasonweinzierl.chatroom;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * chatroom
+ *
+ * Interns each username once to a dense {@code int} id.
+ * Names are matched case-insensitively, so "Alice" and "alice" share an id,
+ * and everything after the lookup can compare ids instead of strings.
+ * Ids are never reused, so they can index plain arrays.
+ *
+ * @author JasonWeinzierl
+ * @version 2026-10-19
+ */
+final class UserTable
+{
+    static final int UNKNOWN = -1;
+
+    // open-addressing index of case-folded name to id
+    private String []keys;
+    private int []ids;
+    private int mask;
+
+    // display names by id
+    private String []names;
+    private int size;
+
+    UserTable() {
+        this.keys = new String[64];
+        this.ids = new int[64];
+        this.mask = 63;
+        this.names = new String[32];
+        this.size = 0;
+    }
+
+    static String fold(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    private int slot(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (keys[i] != null && !keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Gets the id for a username, assigning the next id if it is new
+     *
+     * @param username name as the user typed it
+     * @return id of username
+     */
+    synchronized int intern(String username) {
+        String key = fold(username);
+        int i = this.slot(key);
+        if (keys[i] != null) return ids[i];
+
+        int id = size++;
+        if (id == names.length) names = Arrays.copyOf(names, names.length << 1);
+        names[id] = username;
+
+        keys[i] = key;
+        ids[i] = id;
+        if (size * 2 > keys.length) this.rehash();
+
+        return id;
+    }
+
+    /**
+     * Assigns the next id to a username only if it is new,
+     * so two clients creating the same user can't both succeed
+     *
+     * @param username name as the user typed it
+     * @return new id of username, or {@link #UNKNOWN} if it was already taken
+     */
+    synchronized int claim(String username) {
+        return this.find(username) == UNKNOWN ? this.intern(username) : UNKNOWN;
+    }
+
+    /**
+     * Finds the id for a username without assigning one
+     *
+     * @param username name in any case
+     * @return id of username or {@link #UNKNOWN}
+     */
+    synchronized int find(String username) {
+        int i = this.slot(fold(username));
+        return keys[i] == null ? UNKNOWN : ids[i];
+    }
+
+    /**
+     * @param id interned id
+     * @return name as first interned
+     */
+    synchronized String name(int id) {
+        return names[id];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void rehash() {
+        String []oldKeys = this.keys;
+        int []oldIds = this.ids;
+
+        this.keys = new String[oldKeys.length << 1];
+        this.ids = new int[oldIds.length << 1];
+        this.mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = this.slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            ids[slot] = oldIds[i];
+        }
+    }
+}